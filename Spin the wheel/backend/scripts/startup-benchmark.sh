@@ -0,0 +1,65 @@
+#!/usr/bin/env bash
+# Starts the backend and reports time to readiness and to the first successful spin.
+#
+#   scripts/startup-benchmark.sh                 plain jar (mvn package)
+#   scripts/startup-benchmark.sh cds             AppCDS archive (mvn -Pcds package)
+#   scripts/startup-benchmark.sh aot             AOT-processed jar (mvn -Paot package)
+#
+# RUNS (default 3) repeats the measurement; PORT (default 8080) is the server port.
+
+set -euo pipefail
+
+MODE="${1:-plain}"
+RUNS="${RUNS:-3}"
+PORT="${PORT:-8080}"
+BASE="http://localhost:${PORT}"
+cd "$(dirname "$0")/.."
+
+JAR="target/demo-0.0.1-SNAPSHOT.jar"
+JAVA_OPTS=()
+
+case "$MODE" in
+    plain) ;;
+    cds)
+        JAR="target/cds/demo-0.0.1-SNAPSHOT.jar"
+        JAVA_OPTS+=("-XX:SharedArchiveFile=target/cds/application.jsa")
+        ;;
+    aot)
+        JAVA_OPTS+=("-Dspring.aot.enabled=true")
+        ;;
+    *)
+        echo "Unknown mode: $MODE (plain, cds or aot)" >&2
+        exit 1
+        ;;
+esac
+
+[ -f "$JAR" ] || { echo "Missing $JAR; build it first" >&2; exit 1; }
+
+now_ms() { date +%s%3N; }
+
+for run in $(seq 1 "$RUNS"); do
+
+    start=$(now_ms)
+    java "${JAVA_OPTS[@]}" -jar "$JAR" --server.port="$PORT" > "target/startup-benchmark-${MODE}-${run}.log" 2>&1 &
+    pid=$!
+    trap 'kill $pid 2>/dev/null || true' EXIT
+
+    until curl -fs "${BASE}/actuator/health/readiness" > /dev/null; do
+        kill -0 "$pid" 2>/dev/null || { echo "Server exited; see target/startup-benchmark-${MODE}-${run}.log" >&2; exit 1; }
+        sleep 0.05
+    done
+    ready=$(now_ms)
+
+    until curl -fsN -X POST "${BASE}/api/spin/story/stream" \
+            -H 'Content-Type: application/json' \
+            -d '{"city":"Stockholm","year":1900,"gender":{"id":"FEMALE","description":"Female"}}' | grep -q '^data:'; do
+        sleep 0.2
+    done
+    spun=$(now_ms)
+
+    echo "${MODE} run ${run}: ready $((ready - start)) ms, first spin $((spun - start)) ms"
+
+    kill "$pid"
+    wait "$pid" 2>/dev/null || true
+    trap - EXIT
+done
@@ -0,0 +1,54 @@
+package se.spin.prototype.Beans;
+
+import java.util.List;
+
+public class BatchSpinResult {
+    private List<Integer> indexes;
+    private SpinArguments arguments;
+    private String status;
+    private String generatedText;
+    private List<String> sources;
+    private String error;
+
+    public List<Integer> getIndexes() {
+        return indexes;
+    }
+    public void setIndexes(List<Integer> indexes) {
+        this.indexes = indexes;
+    }
+
+    public SpinArguments getArguments() {
+        return arguments;
+    }
+    public void setArguments(SpinArguments arguments) {
+        this.arguments = arguments;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getGeneratedText() {
+        return generatedText;
+    }
+    public void setGeneratedText(String generatedText) {
+        this.generatedText = generatedText;
+    }
+
+    public List<String> getSources() {
+        return sources;
+    }
+    public void setSources(List<String> sources) {
+        this.sources = sources;
+    }
+
+    public String getError() {
+        return error;
+    }
+    public void setError(String error) {
+        this.error = error;
+    }
+}
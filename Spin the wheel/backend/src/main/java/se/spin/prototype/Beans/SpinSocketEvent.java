@@ -0,0 +1,56 @@
+package se.spin.prototype.Beans;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SpinSocketEvent {
+    private String id;
+    private String type;
+    private String data;
+    private List<String> sources;
+    private String contentType;
+
+    public SpinSocketEvent() {}
+
+    public SpinSocketEvent(String id, String type) {
+        this.id = id;
+        this.type = type;
+    }
+
+    public String getId() {
+        return id;
+    }
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getType() {
+        return type;
+    }
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getData() {
+        return data;
+    }
+    public void setData(String data) {
+        this.data = data;
+    }
+
+    public List<String> getSources() {
+        return sources;
+    }
+    public void setSources(List<String> sources) {
+        this.sources = sources;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+}
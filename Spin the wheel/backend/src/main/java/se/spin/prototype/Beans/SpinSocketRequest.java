@@ -0,0 +1,36 @@
+package se.spin.prototype.Beans;
+
+public class SpinSocketRequest {
+    private String id;
+    private String op;
+    private SpinArguments arguments;
+    private CompareScenariosRequest compare;
+
+    public String getId() {
+        return id;
+    }
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getOp() {
+        return op;
+    }
+    public void setOp(String op) {
+        this.op = op;
+    }
+
+    public SpinArguments getArguments() {
+        return arguments;
+    }
+    public void setArguments(SpinArguments arguments) {
+        this.arguments = arguments;
+    }
+
+    public CompareScenariosRequest getCompare() {
+        return compare;
+    }
+    public void setCompare(CompareScenariosRequest compare) {
+        this.compare = compare;
+    }
+}
@@ -0,0 +1,27 @@
+package se.spin.prototype;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import se.spin.prototype.cluster.InMemorySharedCache;
+import se.spin.prototype.cluster.RedisSharedCache;
+import se.spin.prototype.cluster.SharedGenerationCache;
+
+@Configuration
+public class ClusterCacheConfig {
+    @Bean
+    @ConditionalOnProperty(name = "spin.cluster.cache.type", havingValue = "memory", matchIfMissing = true)
+    public SharedGenerationCache inMemorySharedCache(@Value("${spin.cluster.cache.max-entries:1024}") int maxEntries) {
+        return new InMemorySharedCache(maxEntries);
+    }
+
+    // Connection, timeouts and reconnects come from the managed client's spring.data.redis.* settings
+    @Bean
+    @ConditionalOnProperty(name = "spin.cluster.cache.type", havingValue = "redis")
+    public SharedGenerationCache redisSharedCache(StringRedisTemplate redisTemplate,
+                                                  @Value("${spin.cluster.redis.key-prefix:spin:}") String keyPrefix) {
+        return new RedisSharedCache(redisTemplate, keyPrefix);
+    }
+}
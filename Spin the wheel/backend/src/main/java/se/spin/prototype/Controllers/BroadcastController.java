@@ -0,0 +1,65 @@
+package se.spin.prototype.Controllers;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import se.spin.prototype.Beans.SeedResult;
+import se.spin.prototype.Beans.SpinArguments;
+import se.spin.prototype.services.BroadcastService;
+import se.spin.prototype.services.FirestoreService;
+import se.spin.prototype.services.StreamDrainManager;
+
+import java.util.regex.Pattern;
+
+// One presenter spins, any number of screens watch the same story stream
+@RestController
+@RequestMapping("/api/spin/broadcast")
+public class BroadcastController {
+
+    private static final Pattern CHANNEL_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final BroadcastService broadcastService;
+    private final FirestoreService firestoreService;
+    private final StreamDrainManager streamDrainManager;
+
+    public BroadcastController(BroadcastService broadcastService, FirestoreService firestoreService, StreamDrainManager streamDrainManager) {
+        this.broadcastService = broadcastService;
+        this.firestoreService = firestoreService;
+        this.streamDrainManager = streamDrainManager;
+    }
+
+    @LatencyBudget(millis = 90_000)
+    @PostMapping("/{channel}/story")
+    public ResponseEntity<Void> postBroadcastStory(@PathVariable String channel, @RequestBody SpinArguments arguments) {
+
+        validateChannel(channel);
+
+        if (arguments == null || arguments.getCity() == null || arguments.getYear() == null || arguments.getGender() == null || arguments.getGender().getId() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "City, year and gender are required");
+        }
+
+        streamDrainManager.admit();
+
+        SeedResult seedResult = firestoreService.fetchSeedOrFallback(arguments);
+        broadcastService.publishStory(channel, arguments, seedResult);
+
+        return ResponseEntity.accepted().build();
+    }
+
+    @GetMapping(value = "/{channel}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter getBroadcastStream(@PathVariable String channel,
+                                         @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+
+        validateChannel(channel);
+        return broadcastService.subscribe(channel, lastEventId);
+    }
+
+    private void validateChannel(String channel) {
+        if (!CHANNEL_NAME.matcher(channel).matches()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Channel names are 1-64 letters, digits, '-' or '_'");
+        }
+    }
+}
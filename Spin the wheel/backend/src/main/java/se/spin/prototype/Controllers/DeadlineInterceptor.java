@@ -0,0 +1,68 @@
+package se.spin.prototype.Controllers;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import se.spin.prototype.util.Deadline;
+
+// Binds the request deadline: the X-Request-Budget-Ms header (capped), else the endpoint's @LatencyBudget, else the default
+@Component
+public class DeadlineInterceptor implements AsyncHandlerInterceptor {
+
+    public static final String BUDGET_HEADER = "X-Request-Budget-Ms";
+
+    private final long defaultBudgetMillis;
+    private final long maxBudgetMillis;
+
+    public DeadlineInterceptor(@Value("${spin.deadline.default-ms:30000}") long defaultBudgetMillis,
+                               @Value("${spin.deadline.max-ms:600000}") long maxBudgetMillis) {
+        this.defaultBudgetMillis = defaultBudgetMillis;
+        this.maxBudgetMillis = maxBudgetMillis;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+
+        if (!(handler instanceof HandlerMethod handlerMethod)) {
+            return true;
+        }
+
+        Deadline.bind(Deadline.after(resolveBudget(request, handlerMethod)));
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // Streaming work has captured the deadline; the servlet thread goes back to the pool
+        Deadline.clear();
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Deadline.clear();
+    }
+
+    private long resolveBudget(HttpServletRequest request, HandlerMethod handlerMethod) {
+
+        String header = request.getHeader(BUDGET_HEADER);
+        if (header != null && !header.isBlank()) {
+            try {
+                long requested = Long.parseLong(header.trim());
+                if (requested > 0) {
+                    return Math.min(requested, maxBudgetMillis);
+                }
+            } catch (NumberFormatException ignored) {
+                // Fall through to the error below
+            }
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, BUDGET_HEADER + " must be a positive number of milliseconds");
+        }
+
+        LatencyBudget budget = handlerMethod.getMethodAnnotation(LatencyBudget.class);
+        return budget != null ? budget.millis() : defaultBudgetMillis;
+    }
+}
@@ -0,0 +1,14 @@
+package se.spin.prototype.Controllers;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Default end-to-end budget of an endpoint, used when the client sends no X-Request-Budget-Ms
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface LatencyBudget {
+
+    long millis();
+}
@@ -1,27 +1,90 @@
 package se.spin.prototype.Controllers;
 
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
 import se.spin.prototype.Beans.Gender;
 import se.spin.prototype.Beans.GenderEnum;
+import se.spin.prototype.services.PlaceCatalog;
+import se.spin.prototype.util.TextUtil;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/api/parameterization")
 public class ParameterizationController {
 
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final CacheControl CATALOG_CACHE = CacheControl.maxAge(1, TimeUnit.HOURS).cachePublic();
+
+    private static final List<Gender> GENDERS = Arrays.stream(GenderEnum.values()).map(g -> new Gender(g, g.getDescription())).toList();
+    private static final List<Integer> TIMES = buildTimes();
+
+    private final PlaceCatalog placeCatalog;
+
+    public ParameterizationController(PlaceCatalog placeCatalog) {
+        this.placeCatalog = placeCatalog;
+    }
+
     @GetMapping("/genders")
-    public List<Gender> getGenders() {
-        return Arrays.stream(GenderEnum.values()).map(g -> new Gender(g, g.getDescription())).toList();
+    public ResponseEntity<List<Gender>> getGenders(WebRequest request) {
+
+        String etag = "genders-" + Integer.toHexString(Arrays.toString(GenderEnum.values()).hashCode());
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
+
+        return ResponseEntity.ok().eTag(etag).cacheControl(CATALOG_CACHE).body(GENDERS);
     }
 
     @GetMapping("/times")
-    public List<Integer> getTimes() {
-        
+    public ResponseEntity<List<Integer>> getTimes(WebRequest request) {
+
+        String etag = "times-" + Integer.toHexString(TIMES.hashCode());
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
+
+        return ResponseEntity.ok().eTag(etag).cacheControl(CATALOG_CACHE).body(TIMES);
+    }
+
+    // Without a size every matching place is returned, which is what the spin form loads
+    @GetMapping("/places")
+    public ResponseEntity<List<String>> getPlaces(@RequestParam(required = false) String prefix,
+                                                 @RequestParam(defaultValue = "0") int page,
+                                                 @RequestParam(required = false) Integer size,
+                                                 WebRequest request) {
+
+        if (page < 0 || (size != null && (size < 1 || size > MAX_PAGE_SIZE)) || (size == null && page > 0)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "page must be >= 0 with a size between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        String query = TextUtil.foldDiacritics(prefix) + "|" + page + "|" + (size != null ? size : "all");
+        String etag = "places-" + placeCatalog.getVersion() + "-" + Integer.toHexString(query.hashCode());
+        if (request.checkNotModified(etag)) {
+            return null;
+        }
+
+        PlaceCatalog.Page result = placeCatalog.search(prefix, page, size != null ? size : Integer.MAX_VALUE);
+
+        return ResponseEntity.ok()
+                .eTag(etag)
+                .cacheControl(CATALOG_CACHE)
+                .header("X-Total-Count", String.valueOf(result.total()))
+                .body(result.items());
+    }
+
+    private static List<Integer> buildTimes() {
+
         int start = 1800;
         int end = 2000;
         List<Integer> decades = new ArrayList<>();
@@ -34,15 +97,6 @@ public class ParameterizationController {
             decades.add(end);
         }
 
-        return decades;
-    }
-
-    @GetMapping("/places")
-    public List<String> getPlaces() {
-        return List.of(
-                "Stockholm",
-                "Göteborg",
-                "Malmö"
-        );
+        return List.copyOf(decades);
     }
 }
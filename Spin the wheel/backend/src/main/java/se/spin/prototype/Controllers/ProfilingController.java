@@ -0,0 +1,41 @@
+package se.spin.prototype.Controllers;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.*;
+import se.spin.prototype.profiling.RecordingService;
+
+import java.time.Duration;
+
+// Flight recordings of live traffic; only mapped when spin.profiling.endpoints.enabled=true
+@RestController
+@RequestMapping("/debug/profiling")
+@ConditionalOnProperty(name = "spin.profiling.endpoints.enabled", havingValue = "true")
+public class ProfilingController {
+
+    private final RecordingService recordingService;
+
+    public ProfilingController(RecordingService recordingService) {
+        this.recordingService = recordingService;
+    }
+
+    @GetMapping
+    public RecordingService.Status getStatus() {
+        return recordingService.status();
+    }
+
+    @PostMapping("/start")
+    public RecordingService.Status postStart(@RequestParam(defaultValue = "default") String settings,
+                                             @RequestParam(required = false) Long durationSeconds) {
+        return recordingService.start(settings, durationSeconds != null ? Duration.ofSeconds(durationSeconds) : null);
+    }
+
+    @PostMapping("/stop")
+    public RecordingService.Summary postStop() {
+        return recordingService.stop();
+    }
+
+    @GetMapping("/summary")
+    public RecordingService.Summary getSummary() {
+        return recordingService.summary();
+    }
+}
@@ -1,91 +1,223 @@
 package se.spin.prototype.Controllers;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import se.spin.prototype.services.BatchSpinService;
+import se.spin.prototype.services.ComparisonService;
 import se.spin.prototype.services.FirestoreService;
+import se.spin.prototype.services.GenerationCache;
 import se.spin.prototype.services.HuggingFaceService;
+import se.spin.prototype.services.ImageVariantService;
+import se.spin.prototype.services.PrefetchService;
+import se.spin.prototype.services.SpinSessionService;
+import se.spin.prototype.services.StartupMetrics;
+import se.spin.prototype.services.StreamDrainManager;
 import se.spin.prototype.Beans.CompareScenariosRequest;
 import se.spin.prototype.Beans.GeneratedTextSources;
 import se.spin.prototype.Beans.SeedResult;
 import se.spin.prototype.Beans.SpinArguments;
+import se.spin.prototype.profiling.SpinEvents;
+import se.spin.prototype.tracing.Span;
+import se.spin.prototype.tracing.Tracer;
+import se.spin.prototype.util.GenerationKeys;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/api/spin")
 public class SpinController {
 
+    private static final String SESSION_HEADER = "X-Spin-Session";
+
     private final FirestoreService firestoreService;
     private final HuggingFaceService huggingFaceService;
+    private final PrefetchService prefetchService;
+    private final SpinSessionService spinSessionService;
+    private final BatchSpinService batchSpinService;
+    private final ComparisonService comparisonService;
+    private final GenerationCache generationCache;
+    private final ImageVariantService imageVariantService;
+    private final StartupMetrics startupMetrics;
+    private final StreamDrainManager streamDrainManager;
+    private final ObjectMapper objectMapper;
+    private final long imageWaitMillis;
+    private final int maxBatchSize;
 
-    public SpinController(FirestoreService firestoreService, HuggingFaceService huggingFaceService) {
+    public SpinController(FirestoreService firestoreService,
+                          HuggingFaceService huggingFaceService,
+                          PrefetchService prefetchService,
+                          SpinSessionService spinSessionService,
+                          BatchSpinService batchSpinService,
+                          ComparisonService comparisonService,
+                          GenerationCache generationCache,
+                          ImageVariantService imageVariantService,
+                          StartupMetrics startupMetrics,
+                          StreamDrainManager streamDrainManager,
+                          ObjectMapper objectMapper,
+                          @Value("${spin.session.image-wait-ms:30000}") long imageWaitMillis,
+                          @Value("${spin.batch.max-size:5000}") int maxBatchSize) {
         this.firestoreService = firestoreService;
         this.huggingFaceService = huggingFaceService;
+        this.prefetchService = prefetchService;
+        this.spinSessionService = spinSessionService;
+        this.batchSpinService = batchSpinService;
+        this.comparisonService = comparisonService;
+        this.generationCache = generationCache;
+        this.imageVariantService = imageVariantService;
+        this.startupMetrics = startupMetrics;
+        this.streamDrainManager = streamDrainManager;
+        this.objectMapper = objectMapper;
+        this.imageWaitMillis = imageWaitMillis;
+        this.maxBatchSize = maxBatchSize;
     }
 
+    @LatencyBudget(millis = 60_000)
     @PostMapping(value = "/story/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter postGeneratedTextStream(@RequestBody SpinArguments arguments) {
+    public SseEmitter postGeneratedTextStream(@RequestBody SpinArguments arguments,
+                                              @RequestHeader(value = SESSION_HEADER, required = false) String sessionId,
+                                              HttpServletRequest request) {
         validateSpinArguments(arguments);
 
-        SeedResult seedResult = firestoreService.fetchSeedText(
-            arguments.getCity(),
-            arguments.getYear(),
-            arguments.getGender()
-        ).orElse(new SeedResult("No matching Firestore seed; use the provided context to craft a new story.", null));
+        SseEmitter emitter = new SseEmitter(0L);
+        streamDrainManager.track(emitter, "story");
+        streamStory(emitter, arguments, () -> firestoreService.fetchSeedOrFallback(arguments), resolveSession(sessionId, request));
+
+        return emitter;
+    }
+
+    @LatencyBudget(millis = 60_000)
+    @PostMapping(value = "/session/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter postSpinSessionStream(@RequestBody SpinArguments arguments,
+                                            @RequestHeader(value = SESSION_HEADER, required = false) String sessionId,
+                                            HttpServletRequest request) {
+        validateSpinArguments(arguments);
+        streamDrainManager.admit();
 
+        // Seed lookup happens once here; the image starts generating right away
+        SpinSessionService.SpinSession spinSession = spinSessionService.start(arguments);
         SseEmitter emitter = new SseEmitter(0L);
+        streamDrainManager.track(emitter, "session");
 
-        // Send sources metadata first
         try {
-            List<String> sources = buildSources(seedResult.getLink());
-            emitter.send(SseEmitter.event().name("sources").data(String.join(",", sources)));
+            send(emitter, arguments, "session", spinSession.id());
         } catch (IOException e) {
             emitter.completeWithError(e);
             return emitter;
         }
 
-        huggingFaceService.streamStory(arguments, seedResult.getText())
-            .doOnNext(chunk -> {
-                try {
-                    emitter.send(SseEmitter.event().data(chunk));
-                } catch (IOException e) {
-                    emitter.completeWithError(e);
-                }
-            })
-            .doOnComplete(emitter::complete)
-            .doOnError(emitter::completeWithError)
-            .subscribe();
+        spinSession.image().whenComplete((image, ex) -> {
+            try {
+                send(emitter, arguments, "image", ex == null ? "ready" : "failed");
+            } catch (IOException | IllegalStateException ignored) {
+                // The story finished first; the client fetches the image by session id
+            }
+        });
+
+        streamStory(emitter, arguments, spinSession::seed, resolveSession(sessionId, request));
 
         return emitter;
     }
 
+    @GetMapping("/session/{id}/image")
+    public DeferredResult<ResponseEntity<ByteArrayResource>> getSpinSessionImage(@PathVariable String id,
+                                                                                 @RequestParam(defaultValue = "true") boolean wait,
+                                                                                 @RequestParam(defaultValue = "full") String size) {
+
+        ImageVariantService.Size variantSize = ImageVariantService.Size.parse(size);
+
+        SpinSessionService.SpinSession spinSession = spinSessionService.find(id)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown or expired spin session"));
+
+        CompletableFuture<HuggingFaceService.ImageResult> image = spinSession.image();
+
+        // Not ready yet: 202 tells the client to poll again
+        DeferredResult<ResponseEntity<ByteArrayResource>> result =
+            new DeferredResult<>(imageWaitMillis, ResponseEntity.accepted().<ByteArrayResource>build());
+
+        if (!wait && !image.isDone()) {
+            result.setResult(ResponseEntity.accepted().build());
+            return result;
+        }
+
+        image.thenCompose(original -> imageVariantService.variant(original, variantSize)).whenComplete((imageResult, ex) -> {
+            if (ex == null) {
+                result.setResult(imageResponse(imageResult));
+                return;
+            }
+
+            Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+            result.setErrorResult(cause instanceof ResponseStatusException
+                ? cause
+                : new ResponseStatusException(HttpStatus.BAD_GATEWAY, "Image generation failed", cause));
+        });
+
+        return result;
+    }
+
+    @LatencyBudget(millis = 45_000)
     @PostMapping("/image")
-    public ResponseEntity<ByteArrayResource> postGeneratedImage(@RequestBody SpinArguments body) {
+    public ResponseEntity<ByteArrayResource> postGeneratedImage(@RequestBody SpinArguments body,
+                                                                @RequestParam(defaultValue = "full") String size) {
 
         validateSpinArguments(body);
+        ImageVariantService.Size variantSize = ImageVariantService.Size.parse(size);
 
-        SeedResult seedResult = firestoreService.fetchSeedText(
-            body.getCity(),
-            body.getYear(),
-            body.getGender()
-        ).orElse(new SeedResult("No matching Firestore seed; use the provided context to craft a new story.", null));
+        var imageResult = prefetchService.takeImage(body).orElseGet(() -> {
+            SeedResult seedResult = firestoreService.fetchSeedOrFallback(body);
+            return huggingFaceService.generateImage(body, seedResult.getText());
+        });
 
-        var imageResult = huggingFaceService.generateImage(body, seedResult.getText());
+        return imageResponse(imageVariantService.variant(imageResult, variantSize).join());
+    }
 
-        return ResponseEntity.ok()
-                .contentType(imageResult.contentType())
-                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"story-image.png\"")
-                .body(new ByteArrayResource(imageResult.data()));
+    // Covers the seed lookup only; every spin in the batch gets spin.batch.item-budget-ms of its own
+    @LatencyBudget(millis = 60_000)
+    @PostMapping(value = "/batch", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseBodyEmitter postBatch(@RequestBody List<SpinArguments> spins) {
+
+        if (spins == null || spins.isEmpty() || spins.size() > maxBatchSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A batch must contain between 1 and " + maxBatchSize + " spins");
+        }
+        spins.forEach(this::validateSpinArguments);
+
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(0L);
+        streamDrainManager.track(emitter, "batch");
+
+        Disposable subscription = batchSpinService.generate(spins)
+            .doOnNext(result -> {
+                try {
+                    emitter.send(objectMapper.writeValueAsString(result) + "\n", MediaType.APPLICATION_NDJSON);
+                } catch (IOException e) {
+                    emitter.completeWithError(e);
+                }
+            })
+            .doOnComplete(emitter::complete)
+            .doOnError(emitter::completeWithError)
+            .subscribe();
+        streamDrainManager.attach(emitter, subscription);
+
+        return emitter;
     }
 
+    @LatencyBudget(millis = 90_000)
     @PostMapping(value = "/compare-scenarios/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     public SseEmitter postCompareScenariosStream(@RequestBody CompareScenariosRequest arguments) {
 
@@ -95,51 +227,157 @@ public class SpinController {
 
         validateSpinArguments(arguments.getSpinArgumentsFirstStory());
         validateSpinArguments(arguments.getSpinArgumentsSecondStory());
+        streamDrainManager.admit();
 
-        SpinArguments firstArgs = arguments.getSpinArgumentsFirstStory();
-        SpinArguments secondArgs = arguments.getSpinArgumentsSecondStory();
-
-        SeedResult firstSeed = firestoreService.fetchSeedText(
-                firstArgs.getCity(),
-                firstArgs.getYear(),
-                firstArgs.getGender()
-            ).orElse(new SeedResult("No matching Firestore seed; use the provided context to craft a new story.", null));
-        
-        SeedResult secondSeed = firestoreService.fetchSeedText(
-                secondArgs.getCity(),
-                secondArgs.getYear(),
-                secondArgs.getGender()
-            ).orElse(new SeedResult("No matching Firestore seed; use the provided context to craft a new story.", null));
-
-        String firstStory = huggingFaceService.generateStory(firstArgs, firstSeed.getText());
-        String secondStory = huggingFaceService.generateStory(secondArgs, secondSeed.getText());
+        // Both seed lookups and story generations run here, on the request thread
+        ComparisonService.PreparedComparison comparison;
+        Span prepareSpan = Tracer.start("compare.prepare");
+        try (Tracer.Scope ignored = prepareSpan.makeCurrent()) {
+            comparison = comparisonService.prepare(
+                arguments.getSpinArgumentsFirstStory(), arguments.getGeneratedTextSourcesFirstStory(),
+                arguments.getSpinArgumentsSecondStory(), arguments.getGeneratedTextSourcesSecondStory());
+        } catch (RuntimeException e) {
+            prepareSpan.error(e);
+            throw e;
+        } finally {
+            prepareSpan.end();
+        }
 
         SseEmitter emitter = new SseEmitter(0L);
+        streamDrainManager.track(emitter, "compare");
 
         // Send sources metadata first
         try {
-            List<String> sources = new ArrayList<>();
-            sources.addAll(buildSources(firstSeed.getLink()));
-            sources.addAll(buildSources(secondSeed.getLink()));
-            emitter.send(SseEmitter.event().name("sources").data(String.join(",", sources)));
+            send(emitter, arguments.getSpinArgumentsFirstStory(), "sources", String.join(",", comparison.sources()));
         } catch (IOException e) {
             emitter.completeWithError(e);
             return emitter;
         }
 
-        huggingFaceService.streamCompareStories(firstArgs, secondArgs, firstStory, secondStory)
+        Span streamSpan = Tracer.start("compare.stream").attribute("compare.cached", comparison.cached());
+        try (Tracer.Scope ignored = streamSpan.makeCurrent()) {
+            Disposable subscription = comparisonService.stream(comparison)
+                .doOnNext(chunk -> {
+                    try {
+                        send(emitter, arguments.getSpinArgumentsFirstStory(), null, chunk);
+                    } catch (IOException e) {
+                        emitter.completeWithError(e);
+                    }
+                })
+                .doOnComplete(emitter::complete)
+                .doOnError(ex -> {
+                    streamSpan.error(ex);
+                    emitter.completeWithError(ex);
+                })
+                .doFinally(signal -> streamSpan.end())
+                .subscribe();
+            streamDrainManager.attach(emitter, subscription);
+        }
+
+        return emitter;
+    }
+
+    private void streamStory(SseEmitter emitter, SpinArguments arguments, Supplier<SeedResult> seedLookup, String session) {
+
+        // Covers the seed lookup and the whole stream; ends when the stream does
+        Span span = Tracer.start("spin.story")
+            .attribute("spin.city", arguments.getCity())
+            .attribute("spin.year", arguments.getYear())
+            .attribute("spin.gender", arguments.getGender().getId());
+
+        try (Tracer.Scope ignored = span.makeCurrent()) {
+            streamStory(emitter, arguments, seedLookup, session, span);
+        } catch (RuntimeException e) {
+            span.error(e);
+            span.end();
+            throw e;
+        }
+    }
+
+    private void streamStory(SseEmitter emitter, SpinArguments arguments, Supplier<SeedResult> seedLookup, String session, Span span) {
+
+        var prefetched = prefetchService.takeStory(arguments);
+        span.attribute("spin.prefetched", prefetched.isPresent());
+        if (prefetched.isPresent()) {
+            try {
+                send(emitter, arguments, "sources", String.join(",", buildSources(prefetched.get().link())));
+                send(emitter, arguments, null, prefetched.get().text());
+                emitter.complete();
+                prefetchService.recordSpin(session, arguments);
+                startupMetrics.spinCompleted();
+            } catch (IOException e) {
+                span.error(e);
+                emitter.completeWithError(e);
+            }
+            span.end();
+            return;
+        }
+
+        SeedResult seedResult = seedLookup.get();
+
+        // Send sources metadata first
+        try {
+            List<String> sources = buildSources(seedResult.getLink());
+            send(emitter, arguments, "sources", String.join(",", sources));
+        } catch (IOException e) {
+            span.error(e);
+            span.end();
+            emitter.completeWithError(e);
+            return;
+        }
+
+        // Identical spins in flight anywhere in the cluster share one generation
+        Disposable subscription = generationCache.singleFlight(GenerationKeys.story(arguments), () -> huggingFaceService.streamStory(arguments, seedResult))
             .doOnNext(chunk -> {
                 try {
-                    emitter.send(SseEmitter.event().data(chunk));
+                    send(emitter, arguments, null, chunk);
                 } catch (IOException e) {
                     emitter.completeWithError(e);
                 }
             })
-            .doOnComplete(emitter::complete)
-            .doOnError(emitter::completeWithError)
+            .doOnComplete(() -> {
+                emitter.complete();
+                prefetchService.recordSpin(session, arguments);
+                startupMetrics.spinCompleted();
+            })
+            .doOnError(ex -> {
+                span.error(ex);
+                emitter.completeWithError(ex);
+            })
+            .doFinally(signal -> span.end())
             .subscribe();
+        streamDrainManager.attach(emitter, subscription);
+    }
 
-        return emitter;
+    // name is null for plain message events. Every write is a JFR event, so slow clients show up per spin
+    private void send(SseEmitter emitter, SpinArguments arguments, String name, String data) throws IOException {
+
+        SpinEvents.SseFlush event = new SpinEvents.SseFlush();
+        event.begin();
+        event.outcome = "failed";
+
+        try {
+            emitter.send(name != null ? SseEmitter.event().name(name).data(data) : SseEmitter.event().data(data));
+            event.outcome = "sent";
+        } finally {
+            event.spin(arguments);
+            event.event = name != null ? name : "message";
+            if (event.isEnabled()) {
+                event.bytes = data.getBytes(StandardCharsets.UTF_8).length;
+            }
+            event.commit();
+        }
+    }
+
+    private ResponseEntity<ByteArrayResource> imageResponse(HuggingFaceService.ImageResult imageResult) {
+        return ResponseEntity.ok()
+                .contentType(imageResult.contentType())
+                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"story-image.png\"")
+                .body(new ByteArrayResource(imageResult.data()));
+    }
+
+    private String resolveSession(String sessionId, HttpServletRequest request) {
+        return (sessionId != null && !sessionId.isBlank()) ? sessionId : request.getRemoteAddr();
     }
 
     private void validateSpinArguments(SpinArguments arguments) {
@@ -0,0 +1,385 @@
+package se.spin.prototype.Controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import se.spin.prototype.Beans.CompareScenariosRequest;
+import se.spin.prototype.Beans.SeedResult;
+import se.spin.prototype.Beans.SpinArguments;
+import se.spin.prototype.Beans.SpinSocketEvent;
+import se.spin.prototype.Beans.SpinSocketRequest;
+import se.spin.prototype.services.ComparisonService;
+import se.spin.prototype.services.FirestoreService;
+import se.spin.prototype.services.GenerationCache;
+import se.spin.prototype.services.HuggingFaceService;
+import se.spin.prototype.services.PrefetchService;
+import se.spin.prototype.services.StreamDrainManager;
+import se.spin.prototype.util.Deadline;
+import se.spin.prototype.util.GenerationKeys;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// One WebSocket connection carrying many concurrent spin, image and compare operations, each tagged
+// with the client's correlation id. Images are binary frames: [u16 header length][JSON header][image bytes]
+@Component
+public class SpinSocketHandler extends TextWebSocketHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(SpinSocketHandler.class);
+
+    // How often a paused operation looks at the send buffer again
+    private static final long DRAIN_CHECK_MILLIS = 20;
+
+    private final FirestoreService firestoreService;
+    private final HuggingFaceService huggingFaceService;
+    private final PrefetchService prefetchService;
+    private final ComparisonService comparisonService;
+    private final GenerationCache generationCache;
+    private final StreamDrainManager streamDrainManager;
+    private final ObjectMapper objectMapper;
+
+    private final int maxInFlight;
+    private final int sendTimeLimitMillis;
+    private final int sendBufferLimit;
+    private final int sendBufferHighWater;
+    private final long operationBudgetMillis;
+
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+
+    public SpinSocketHandler(FirestoreService firestoreService,
+                             HuggingFaceService huggingFaceService,
+                             PrefetchService prefetchService,
+                             ComparisonService comparisonService,
+                             GenerationCache generationCache,
+                             StreamDrainManager streamDrainManager,
+                             ObjectMapper objectMapper,
+                             @Value("${spin.ws.max-in-flight:8}") int maxInFlight,
+                             @Value("${spin.ws.send-time-limit-ms:10000}") int sendTimeLimitMillis,
+                             @Value("${spin.ws.send-buffer-limit:4194304}") int sendBufferLimit,
+                             @Value("${spin.ws.send-buffer-high-water:1048576}") int sendBufferHighWater,
+                             @Value("${spin.ws.operation-budget-ms:90000}") long operationBudgetMillis) {
+        this.firestoreService = firestoreService;
+        this.huggingFaceService = huggingFaceService;
+        this.prefetchService = prefetchService;
+        this.comparisonService = comparisonService;
+        this.generationCache = generationCache;
+        this.streamDrainManager = streamDrainManager;
+        this.objectMapper = objectMapper;
+        this.maxInFlight = maxInFlight;
+        this.sendTimeLimitMillis = sendTimeLimitMillis;
+        this.sendBufferLimit = sendBufferLimit;
+        this.sendBufferHighWater = sendBufferHighWater;
+        this.operationBudgetMillis = operationBudgetMillis;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+
+        // Operations pause above the high-water mark; a client that stops reading altogether is disconnected after the send time limit
+        ConcurrentWebSocketSessionDecorator concurrent = new ConcurrentWebSocketSessionDecorator(session, sendTimeLimitMillis, sendBufferLimit);
+        connections.put(session.getId(), new Connection(concurrent));
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+
+        Connection connection = connections.get(session.getId());
+        if (connection == null) {
+            return;
+        }
+
+        SpinSocketRequest request;
+        try {
+            request = objectMapper.readValue(message.getPayload(), SpinSocketRequest.class);
+        } catch (IOException e) {
+            sendEvent(connection, errorEvent(null, "Malformed message"));
+            return;
+        }
+
+        String id = request.getId();
+        if (id == null || id.isBlank() || request.getOp() == null) {
+            sendEvent(connection, errorEvent(id, "Both id and op are required"));
+            return;
+        }
+
+        if ("cancel".equals(request.getOp())) {
+            Disposable operation = connection.operations.remove(id);
+            if (operation != null) {
+                operation.dispose();
+            }
+            return;
+        }
+
+        if (connection.operations.size() >= maxInFlight) {
+            sendEvent(connection, errorEvent(id, "Too many operations in flight (max " + maxInFlight + ")"));
+            return;
+        }
+
+        // Claimed before the operation is built, so a rejected id cannot consume a prefetched story
+        Disposable.Swap slot = Disposables.swap();
+        if (connection.operations.putIfAbsent(id, slot) != null) {
+            sendEvent(connection, errorEvent(id, "Operation id already in use"));
+            return;
+        }
+
+        Flux<WebSocketMessage<?>> frames;
+        try {
+            streamDrainManager.track(slot, request.getOp(), retryMillis -> {
+                slot.dispose();
+                sendEvent(connection, retryEvent(id, retryMillis));
+            });
+            frames = operation(request, session.getId());
+        } catch (ResponseStatusException e) {
+            streamDrainManager.untrack(slot);
+            connection.operations.remove(id, slot);
+            sendEvent(connection, errorEvent(id, e.getReason()));
+            return;
+        }
+
+        slot.update(frames
+            .concatWith(Mono.fromSupplier(() -> textFrame(new SpinSocketEvent(id, "done"))))
+            .onErrorResume(ex -> Mono.fromSupplier(() -> textFrame(errorEvent(id, errorMessage(ex)))))
+            .doFinally(signal -> {
+                connection.operations.remove(id, slot);
+                streamDrainManager.untrack(slot);
+            })
+            .subscribeWith(new FrameSender(connection)));
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+
+        Connection connection = connections.remove(session.getId());
+        if (connection != null) {
+            connection.operations.values().forEach(Disposable::dispose);
+        }
+    }
+
+    private Flux<WebSocketMessage<?>> operation(SpinSocketRequest request, String sessionId) {
+
+        String id = request.getId();
+        Deadline deadline = Deadline.after(operationBudgetMillis);
+
+        switch (request.getOp()) {
+
+            case "story" -> {
+                SpinArguments arguments = requireArguments(request.getArguments());
+                return storyFrames(id, arguments, sessionId, deadline);
+            }
+
+            case "image" -> {
+                SpinArguments arguments = requireArguments(request.getArguments());
+                return Mono.fromCallable(deadline.wrap(() -> prefetchService.takeImage(arguments).orElseGet(() -> {
+                        SeedResult seed = firestoreService.fetchSeedOrFallback(arguments);
+                        return huggingFaceService.generateImage(arguments, seed.getText());
+                    })))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .<WebSocketMessage<?>>map(image -> imageFrame(id, image))
+                    .flux();
+            }
+
+            case "compare" -> {
+                CompareScenariosRequest compare = request.getCompare();
+                if (compare == null) {
+                    throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "Both scenarios are required");
+                }
+                requireArguments(compare.getSpinArgumentsFirstStory());
+                requireArguments(compare.getSpinArgumentsSecondStory());
+
+                return Mono.fromCallable(deadline.wrap(() -> comparisonService.prepare(
+                        compare.getSpinArgumentsFirstStory(), compare.getGeneratedTextSourcesFirstStory(),
+                        compare.getSpinArgumentsSecondStory(), compare.getGeneratedTextSourcesSecondStory())))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .flatMapMany(prepared -> Flux.concat(
+                        Mono.fromSupplier(() -> textFrame(sourcesEvent(id, prepared.sources()))),
+                        deferWithin(deadline, () -> comparisonService.stream(prepared)).map(chunk -> chunkFrame(id, chunk))));
+            }
+
+            default -> throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "Unknown op " + request.getOp());
+        }
+    }
+
+    private Flux<WebSocketMessage<?>> storyFrames(String id, SpinArguments arguments, String sessionId, Deadline deadline) {
+
+        var prefetched = prefetchService.takeStory(arguments);
+        if (prefetched.isPresent()) {
+            prefetchService.recordSpin(sessionId, arguments);
+            return Flux.just(
+                textFrame(sourcesEvent(id, sources(prefetched.get().link()))),
+                chunkFrame(id, prefetched.get().text()));
+        }
+
+        return Mono.fromCallable(deadline.wrap(() -> firestoreService.fetchSeedOrFallback(arguments)))
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMapMany(seed -> Flux.concat(
+                Mono.fromSupplier(() -> textFrame(sourcesEvent(id, sources(seed.getLink())))),
+                deferWithin(deadline, () -> generationCache.singleFlight(GenerationKeys.story(arguments),
+                    () -> huggingFaceService.streamStory(arguments, seed))).map(chunk -> chunkFrame(id, chunk))))
+            .doOnComplete(() -> prefetchService.recordSpin(sessionId, arguments));
+    }
+
+    // Streams capture the current deadline when they are assembled, so bind it around that
+    private static <T> Flux<T> deferWithin(Deadline deadline, Supplier<Flux<T>> source) {
+        return Flux.defer(() -> {
+            Deadline.bind(deadline);
+            try {
+                return source.get();
+            } finally {
+                Deadline.clear();
+            }
+        });
+    }
+
+    // Requests one frame at a time, and the next only once the send buffer has room for it
+    private final class FrameSender extends BaseSubscriber<WebSocketMessage<?>> {
+
+        private final Connection connection;
+
+        private FrameSender(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            request(1);
+        }
+
+        @Override
+        protected void hookOnNext(WebSocketMessage<?> frame) {
+            send(connection, frame);
+            requestWhenDrained();
+        }
+
+        private void requestWhenDrained() {
+
+            if (isDisposed() || !connection.session.isOpen()) {
+                return;
+            }
+
+            if (connection.session.getBufferSize() < sendBufferHighWater) {
+                request(1);
+            } else {
+                Schedulers.parallel().schedule(this::requestWhenDrained, DRAIN_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void sendEvent(Connection connection, SpinSocketEvent event) {
+        send(connection, textFrame(event));
+    }
+
+    private void send(Connection connection, WebSocketMessage<?> frame) {
+
+        if (!connection.session.isOpen()) {
+            return;
+        }
+
+        try {
+            connection.session.sendMessage(frame);
+        } catch (IOException | RuntimeException e) {
+            // Send buffer overflow or a dead socket; the decorator has closed the session
+            log.debug("Dropping WebSocket frame for session {}", connection.session.getId(), e);
+        }
+    }
+
+    private WebSocketMessage<?> textFrame(SpinSocketEvent event) {
+        return new TextMessage(encode(event));
+    }
+
+    private WebSocketMessage<?> chunkFrame(String id, String chunk) {
+        SpinSocketEvent event = new SpinSocketEvent(id, "chunk");
+        event.setData(chunk);
+        return textFrame(event);
+    }
+
+    // [u16 header length][JSON header][image bytes]
+    private WebSocketMessage<?> imageFrame(String id, HuggingFaceService.ImageResult image) {
+
+        SpinSocketEvent header = new SpinSocketEvent(id, "image");
+        header.setContentType(image.contentType().toString());
+
+        byte[] headerBytes = encode(header);
+
+        ByteBuffer frame = ByteBuffer.allocate(2 + headerBytes.length + image.data().length);
+        frame.putShort((short) headerBytes.length);
+        frame.put(headerBytes);
+        frame.put(image.data());
+        frame.flip();
+
+        return new BinaryMessage(frame);
+    }
+
+    private byte[] encode(SpinSocketEvent event) {
+        try {
+            return objectMapper.writeValueAsBytes(event);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode WebSocket event", e);
+        }
+    }
+
+    private SpinSocketEvent sourcesEvent(String id, List<String> sources) {
+        SpinSocketEvent event = new SpinSocketEvent(id, "sources");
+        event.setSources(sources);
+        return event;
+    }
+
+    private SpinSocketEvent errorEvent(String id, String message) {
+        SpinSocketEvent event = new SpinSocketEvent(id, "error");
+        event.setData(message);
+        return event;
+    }
+
+    // The server is shutting down; data is the delay in milliseconds before sending the operation again
+    private SpinSocketEvent retryEvent(String id, long retryMillis) {
+        SpinSocketEvent event = new SpinSocketEvent(id, "retry");
+        event.setData(Long.toString(retryMillis));
+        return event;
+    }
+
+    private static String errorMessage(Throwable ex) {
+        return ex instanceof ResponseStatusException status ? status.getReason() : "Operation failed";
+    }
+
+    private static SpinArguments requireArguments(SpinArguments arguments) {
+        if (arguments == null || arguments.getCity() == null || arguments.getYear() == null || arguments.getGender() == null || arguments.getGender().getId() == null) {
+            throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "City, year and gender are required");
+        }
+        return arguments;
+    }
+
+    private static List<String> sources(String link) {
+        return (link != null && !link.isBlank()) ? List.of(link) : List.of();
+    }
+
+    private static final class Connection {
+
+        private final ConcurrentWebSocketSessionDecorator session;
+        private final Map<String, Disposable> operations = new ConcurrentHashMap<>();
+
+        private Connection(ConcurrentWebSocketSessionDecorator session) {
+            this.session = session;
+        }
+    }
+}
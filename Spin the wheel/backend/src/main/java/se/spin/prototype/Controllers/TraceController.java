@@ -0,0 +1,41 @@
+package se.spin.prototype.Controllers;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import se.spin.prototype.tracing.TraceStore;
+
+import java.util.List;
+
+// Recent traces from the in-process exporter; only mapped when spin.tracing.endpoints.enabled=true
+@RestController
+@RequestMapping("/debug/traces")
+@ConditionalOnProperty(name = "spin.tracing.endpoints.enabled", havingValue = "true")
+public class TraceController {
+
+    private static final int MAX_LIMIT = 200;
+
+    private final TraceStore traceStore;
+
+    public TraceController(TraceStore traceStore) {
+        this.traceStore = traceStore;
+    }
+
+    @GetMapping("/recent")
+    public List<TraceStore.TraceView> getRecent(@RequestParam(defaultValue = "20") int limit,
+                                                @RequestParam(defaultValue = "0") long minDurationMs) {
+
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_LIMIT);
+        }
+
+        return traceStore.recent(limit, minDurationMs);
+    }
+
+    @GetMapping("/{traceId}")
+    public TraceStore.TraceView getTrace(@PathVariable String traceId) {
+        return traceStore.find(traceId)
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Trace not found"));
+    }
+}
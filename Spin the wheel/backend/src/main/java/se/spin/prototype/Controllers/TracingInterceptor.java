@@ -0,0 +1,62 @@
+package se.spin.prototype.Controllers;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+import se.spin.prototype.tracing.Span;
+import se.spin.prototype.tracing.Tracer;
+
+// Opens the server span of a request, continuing an incoming traceparent; streaming responses keep it open until the last event
+@Component
+public class TracingInterceptor implements AsyncHandlerInterceptor {
+
+    public static final String TRACE_ID_HEADER = "X-Trace-Id";
+
+    private static final String SPAN_ATTRIBUTE = TracingInterceptor.class.getName() + ".span";
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+
+        // Async dispatches of a streaming request carry on with the span of the first dispatch
+        Span span = (Span) request.getAttribute(SPAN_ATTRIBUTE);
+        if (span == null) {
+            Object route = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            span = Tracer.startRemote(request.getMethod() + " " + (route != null ? route : request.getRequestURI()), request.getHeader(Tracer.TRACEPARENT))
+                .attribute("http.method", request.getMethod())
+                .attribute("http.route", route);
+            request.setAttribute(SPAN_ATTRIBUTE, span);
+            response.setHeader(TRACE_ID_HEADER, span.traceId());
+        }
+
+        Tracer.bind(span);
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // Streaming work has captured the span; the servlet thread goes back to the pool
+        Tracer.clear();
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+
+        Span span = (Span) request.getAttribute(SPAN_ATTRIBUTE);
+        if (span != null) {
+            span.attribute("http.status_code", response.getStatus());
+            if (ex != null) {
+                span.error(ex);
+            }
+            span.end();
+        }
+
+        Tracer.clear();
+    }
+}
@@ -0,0 +1,21 @@
+package se.spin.prototype;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import se.spin.prototype.Controllers.DeadlineInterceptor;
+
+@Configuration
+public class DeadlineConfig {
+    @Bean
+    public WebMvcConfigurer deadlineConfigurer(DeadlineInterceptor deadlineInterceptor) {
+        return new WebMvcConfigurer() {
+            @Override
+            public void addInterceptors(InterceptorRegistry registry) {
+                registry.addInterceptor(deadlineInterceptor)
+                        .addPathPatterns("/api/spin/**");
+            }
+        };
+    }
+}
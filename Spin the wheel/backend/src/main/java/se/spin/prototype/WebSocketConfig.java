@@ -0,0 +1,24 @@
+package se.spin.prototype;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import se.spin.prototype.Controllers.SpinSocketHandler;
+
+@Configuration
+@EnableWebSocket
+public class WebSocketConfig implements WebSocketConfigurer {
+
+    private final SpinSocketHandler spinSocketHandler;
+
+    public WebSocketConfig(SpinSocketHandler spinSocketHandler) {
+        this.spinSocketHandler = spinSocketHandler;
+    }
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(spinSocketHandler, "/api/spin/ws")
+                .setAllowedOrigins("http://localhost:4200");
+    }
+}
@@ -0,0 +1,139 @@
+package se.spin.prototype.cluster;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+// SharedGenerationCache inside this process, for a single replica and for tests
+public class InMemorySharedCache implements SharedGenerationCache {
+
+    private static final int SWEEP_EVERY = 256;
+
+    private final Map<String, Expiring<String>> values;
+    private final Map<String, Expiring<String>> leases = new LinkedHashMap<>();
+    private final Map<String, Expiring<List<String>>> streams = new LinkedHashMap<>();
+
+    private int operations;
+
+    public InMemorySharedCache(int maxEntries) {
+        this.values = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Expiring<String>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public synchronized Optional<String> get(String key) {
+        return Optional.ofNullable(live(values, key));
+    }
+
+    @Override
+    public synchronized void put(String key, String value, Duration ttl) {
+        sweepIfDue();
+        values.put(key, new Expiring<>(value, expiry(ttl)));
+    }
+
+    @Override
+    public synchronized boolean tryAcquire(String lease, String token, Duration ttl) {
+
+        sweepIfDue();
+        if (live(leases, lease) != null) {
+            return false;
+        }
+
+        leases.put(lease, new Expiring<>(token, expiry(ttl)));
+        return true;
+    }
+
+    @Override
+    public synchronized Optional<String> holder(String lease) {
+        return Optional.ofNullable(live(leases, lease));
+    }
+
+    @Override
+    public synchronized boolean renew(String lease, String token, Duration ttl) {
+
+        if (!Objects.equals(live(leases, lease), token)) {
+            return false;
+        }
+
+        leases.put(lease, new Expiring<>(token, expiry(ttl)));
+        return true;
+    }
+
+    @Override
+    public synchronized void release(String lease, String token) {
+        if (Objects.equals(live(leases, lease), token)) {
+            leases.remove(lease);
+        }
+    }
+
+    @Override
+    public synchronized void append(String stream, List<String> chunks, Duration ttl) {
+
+        sweepIfDue();
+        List<String> existing = live(streams, stream);
+        if (existing == null) {
+            existing = new ArrayList<>();
+        }
+
+        existing.addAll(chunks);
+        streams.put(stream, new Expiring<>(existing, expiry(ttl)));
+    }
+
+    @Override
+    public synchronized List<String> read(String stream, int from) {
+
+        List<String> chunks = live(streams, stream);
+        if (chunks == null || from >= chunks.size()) {
+            return List.of();
+        }
+
+        return List.copyOf(chunks.subList(from, chunks.size()));
+    }
+
+    private static <T> T live(Map<String, Expiring<T>> map, String key) {
+
+        Expiring<T> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.expiresAt() <= System.currentTimeMillis()) {
+            map.remove(key);
+            return null;
+        }
+
+        return entry.value();
+    }
+
+    private void sweepIfDue() {
+
+        if (++operations % SWEEP_EVERY != 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map<String, ? extends Expiring<?>> map : List.of(values, leases, streams)) {
+            Iterator<? extends Expiring<?>> entries = map.values().iterator();
+            while (entries.hasNext()) {
+                if (entries.next().expiresAt() <= now) {
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    private static long expiry(Duration ttl) {
+        return System.currentTimeMillis() + ttl.toMillis();
+    }
+
+    private record Expiring<T>(T value, long expiresAt) {}
+}
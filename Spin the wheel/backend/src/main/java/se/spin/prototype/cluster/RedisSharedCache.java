@@ -0,0 +1,97 @@
+package se.spin.prototype.cluster;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+// SharedGenerationCache on Redis, through Boot's managed client; connection settings are spring.data.redis.*
+public class RedisSharedCache implements SharedGenerationCache {
+
+    static final String RENEW_SCRIPT =
+        "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end";
+    static final String RELEASE_SCRIPT =
+        "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+
+    // Run by SHA once the server has seen them
+    private static final RedisScript<Long> RENEW = RedisScript.of(RENEW_SCRIPT, Long.class);
+    private static final RedisScript<Long> RELEASE = RedisScript.of(RELEASE_SCRIPT, Long.class);
+
+    private final StringRedisTemplate redis;
+    private final String keyPrefix;
+
+    public RedisSharedCache(StringRedisTemplate redis, String keyPrefix) {
+        this.redis = redis;
+        this.keyPrefix = keyPrefix;
+    }
+
+    @Override
+    public Optional<String> get(String key) {
+        return call(() -> Optional.ofNullable(redis.opsForValue().get(keyPrefix + key)));
+    }
+
+    @Override
+    public void put(String key, String value, Duration ttl) {
+        call(() -> {
+            redis.opsForValue().set(keyPrefix + key, value, ttl);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean tryAcquire(String lease, String token, Duration ttl) {
+        return call(() -> Boolean.TRUE.equals(redis.opsForValue().setIfAbsent(keyPrefix + lease, token, ttl)));
+    }
+
+    @Override
+    public Optional<String> holder(String lease) {
+        return get(lease);
+    }
+
+    @Override
+    public boolean renew(String lease, String token, Duration ttl) {
+        return call(() -> Long.valueOf(1).equals(redis.execute(RENEW, List.of(keyPrefix + lease), token, Long.toString(ttl.toMillis()))));
+    }
+
+    @Override
+    public void release(String lease, String token) {
+        call(() -> redis.execute(RELEASE, List.of(keyPrefix + lease), token));
+    }
+
+    // One round trip for the push and the expiry
+    @Override
+    public void append(String stream, List<String> chunks, Duration ttl) {
+
+        String key = keyPrefix + stream;
+        String[] values = chunks.toArray(String[]::new);
+
+        call(() -> redis.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection strings = (StringRedisConnection) connection;
+            strings.rPush(key, values);
+            strings.pExpire(key, ttl.toMillis());
+            return null;
+        }));
+    }
+
+    @Override
+    public List<String> read(String stream, int from) {
+        return call(() -> {
+            List<String> chunks = redis.opsForList().range(keyPrefix + stream, from, -1);
+            return chunks != null ? chunks : List.of();
+        });
+    }
+
+    private static <T> T call(Supplier<T> command) {
+        try {
+            return command.get();
+        } catch (DataAccessException e) {
+            throw new SharedCacheException("Redis failed: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package se.spin.prototype.cluster;
+
+// The shared tier could not be reached or answered with an error
+public class SharedCacheException extends RuntimeException {
+
+    public SharedCacheException(String message) {
+        super(message);
+    }
+
+    public SharedCacheException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,30 @@
+package se.spin.prototype.cluster;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+// The generation cache tier all replicas see: values, leases and progress streams.
+// Every operation may throw SharedCacheException, which callers treat as a miss
+public interface SharedGenerationCache {
+
+    Optional<String> get(String key);
+
+    void put(String key, String value, Duration ttl);
+
+    // True when the lease was free and now belongs to token
+    boolean tryAcquire(String lease, String token, Duration ttl);
+
+    Optional<String> holder(String lease);
+
+    // Both are no-ops unless token still holds the lease
+    boolean renew(String lease, String token, Duration ttl);
+
+    void release(String lease, String token);
+
+    // Adds the chunks to the end of the stream, in order, in one round trip
+    void append(String stream, List<String> chunks, Duration ttl);
+
+    // Entries from index from to the end of the stream; empty when it does not exist
+    List<String> read(String stream, int from);
+}
@@ -0,0 +1,237 @@
+package se.spin.prototype.profiling;
+
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Starts and stops a bounded in-process flight recording of live traffic and summarizes it
+@Component
+public class RecordingService {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordingService.class);
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    // Slowest events kept per type in a summary
+    private static final int SLOWEST = 5;
+
+    private final Path directory;
+    private final Duration maxDuration;
+
+    // Guarded by this
+    private Recording recording;
+    private Path lastDump;
+
+    public RecordingService(@Value("${spin.profiling.directory:profiling}") String directory,
+                            @Value("${spin.profiling.max-duration-minutes:30}") long maxDurationMinutes) {
+
+        this.directory = Path.of(directory);
+        this.maxDuration = Duration.ofMinutes(maxDurationMinutes);
+    }
+
+    // settings is a JDK configuration name: "default" (about 1% overhead) or "profile" (adds method sampling)
+    public synchronized Status start(String settings, Duration duration) {
+
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "A recording is already running");
+        }
+
+        Configuration configuration;
+        try {
+            configuration = Configuration.getConfiguration(settings);
+        } catch (IOException | ParseException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown recording settings " + settings);
+        }
+
+        closeRecording();
+
+        Recording started = new Recording(configuration);
+        started.setName("spin");
+        started.setToDisk(true);
+        started.setDuration(duration == null || duration.compareTo(maxDuration) > 0 ? maxDuration : duration);
+        for (Class<? extends Event> type : SpinEvents.TYPES) {
+            started.enable(type);
+        }
+        started.start();
+
+        recording = started;
+        log.info("Started flight recording with {} settings for at most {}", settings, started.getDuration());
+
+        return status();
+    }
+
+    public synchronized Summary stop() {
+
+        if (recording == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No recording to stop");
+        }
+
+        if (recording.getState() == RecordingState.RUNNING) {
+            recording.stop();
+        }
+
+        Path file = directory.resolve("spin-" + LocalDateTime.now().format(FILE_TIME) + ".jfr");
+        try {
+            Files.createDirectories(directory);
+            recording.dump(file);
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to write recording", e);
+        } finally {
+            closeRecording();
+        }
+
+        lastDump = file;
+        log.info("Flight recording written to {}", file.toAbsolutePath());
+
+        return summarize(file, "stopped");
+    }
+
+    // Summarizes the running recording so far, or else the last one that was stopped
+    public synchronized Summary summary() {
+
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+
+            Path snapshot = null;
+            try {
+                snapshot = Files.createTempFile("spin-snapshot", ".jfr");
+                recording.dump(snapshot);
+                return summarize(snapshot, "running");
+            } catch (IOException e) {
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to snapshot recording", e);
+            } finally {
+                deleteQuietly(snapshot);
+            }
+        }
+
+        if (lastDump == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No recording yet");
+        }
+
+        return summarize(lastDump, "stopped");
+    }
+
+    public synchronized Status status() {
+
+        if (recording == null) {
+            return new Status("none", null, null, lastDump != null ? lastDump.toString() : null);
+        }
+
+        return new Status(recording.getState().name().toLowerCase(), recording.getStartTime() != null ? recording.getStartTime().toString() : null,
+            recording.getDuration() != null ? recording.getDuration().toString() : null, lastDump != null ? lastDump.toString() : null);
+    }
+
+    private Summary summarize(Path file, String state) {
+
+        Map<String, Accumulator> byType = new TreeMap<>();
+
+        try (RecordingFile events = new RecordingFile(file)) {
+            while (events.hasMoreEvents()) {
+
+                RecordedEvent event = events.readEvent();
+                String type = event.getEventType().getName();
+                if (!type.startsWith("se.spin.")) {
+                    continue;
+                }
+
+                byType.computeIfAbsent(type, key -> new Accumulator()).add(event);
+            }
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to read recording", e);
+        }
+
+        List<EventSummary> summaries = new ArrayList<>(byType.size());
+        byType.forEach((type, accumulator) -> summaries.add(accumulator.toSummary(type)));
+
+        return new Summary(state, file.toString(), summaries);
+    }
+
+    private void closeRecording() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.debug("Could not delete {}", file, e);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        closeRecording();
+    }
+
+    public record Status(String state, String startedAt, String maxDuration, String lastDump) {}
+
+    public record Summary(String state, String file, List<EventSummary> events) {}
+
+    public record EventSummary(String event, long count, double averageMillis, double maxMillis,
+                               Map<String, Long> outcomes, List<SlowEvent> slowest) {}
+
+    public record SlowEvent(double millis, String city, int year, String gender, String outcome) {}
+
+    private static final class Accumulator {
+
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+        private final Map<String, Long> outcomes = new TreeMap<>();
+        private final List<SlowEvent> slowest = new ArrayList<>();
+
+        private void add(RecordedEvent event) {
+
+            long nanos = event.getDuration().toNanos();
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+
+            String outcome = event.hasField("outcome") ? event.getString("outcome") : null;
+            outcomes.merge(outcome != null ? outcome : "unknown", 1L, Long::sum);
+
+            if (slowest.size() < SLOWEST || nanos / 1e6 > slowest.get(slowest.size() - 1).millis()) {
+                slowest.add(new SlowEvent(nanos / 1e6,
+                    event.hasField("city") ? event.getString("city") : null,
+                    event.hasField("year") ? event.getInt("year") : 0,
+                    event.hasField("gender") ? event.getString("gender") : null,
+                    outcome));
+                slowest.sort(Comparator.comparingDouble(SlowEvent::millis).reversed());
+                if (slowest.size() > SLOWEST) {
+                    slowest.remove(SLOWEST);
+                }
+            }
+        }
+
+        private EventSummary toSummary(String type) {
+            return new EventSummary(type, count, count == 0 ? 0 : totalNanos / 1e6 / count, maxNanos / 1e6, outcomes, List.copyOf(slowest));
+        }
+    }
+}
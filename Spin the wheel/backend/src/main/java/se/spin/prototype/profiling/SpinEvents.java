@@ -0,0 +1,157 @@
+package se.spin.prototype.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import se.spin.prototype.Beans.GenderEnum;
+import se.spin.prototype.Beans.SpinArguments;
+
+import java.util.List;
+
+// Flight Recorder events for the stages of a spin, each tagged with the spin it belongs to
+public final class SpinEvents {
+
+    public static final List<Class<? extends Event>> TYPES = List.of(
+        SeedLookup.class, PromptBuild.class, UpstreamConnect.class, FirstToken.class,
+        Completion.class, SseFlush.class, ImageDownload.class);
+
+    private SpinEvents() {
+    }
+
+    @Category({"Spin", "Pipeline"})
+    @StackTrace(false)
+    public abstract static class SpinEvent extends Event {
+
+        @Label("City")
+        public String city;
+
+        @Label("Year")
+        public int year;
+
+        @Label("Gender")
+        public String gender;
+
+        @Label("Outcome")
+        public String outcome;
+
+        public void spin(SpinArguments arguments) {
+            if (arguments != null) {
+                spin(arguments.getCity(), arguments.getYear(), arguments.getGender() != null ? arguments.getGender().getId() : null);
+            }
+        }
+
+        public void spin(String city, Integer year, GenderEnum gender) {
+            this.city = city;
+            this.year = year != null ? year : 0;
+            this.gender = gender != null ? gender.name() : null;
+        }
+    }
+
+    @Name("se.spin.SeedLookup")
+    @Label("Seed Lookup")
+    @Description("Seed biography lookup in FirestoreService")
+    public static final class SeedLookup extends SpinEvent {
+
+        @Label("Cached")
+        public boolean cached;
+
+        @Label("Text Length")
+        @Description("Characters of seed text found")
+        public int textLength;
+    }
+
+    @Name("se.spin.PromptBuild")
+    @Label("Prompt Build")
+    @Description("Related seed retrieval and prompt assembly")
+    public static final class PromptBuild extends SpinEvent {
+
+        @Label("Related Seeds")
+        public int relatedSeeds;
+
+        @Label("Prompt Tokens")
+        @Description("Estimated at four characters per token")
+        public int promptTokens;
+    }
+
+    @Name("se.spin.UpstreamConnect")
+    @Label("Upstream Connect")
+    @Description("Request start until response headers: connect, TLS, request upload and upstream queueing")
+    public static final class UpstreamConnect extends SpinEvent {
+
+        @Label("Host")
+        public String host;
+
+        @Label("Status")
+        public int status;
+    }
+
+    @Name("se.spin.FirstToken")
+    @Label("Time To First Token")
+    @Description("One streaming attempt, from subscription until its first delta")
+    public static final class FirstToken extends SpinEvent {
+
+        @Label("Stream")
+        public String stream;
+
+        @Label("Attempt")
+        public int attempt;
+
+        @Label("Max Tokens")
+        public int maxTokens;
+    }
+
+    @Name("se.spin.Completion")
+    @Label("Completion")
+    @Description("A whole chat completion, streamed or not, retries included")
+    public static final class Completion extends SpinEvent {
+
+        @Label("Kind")
+        public String kind;
+
+        @Label("Streamed")
+        public boolean streamed;
+
+        @Label("Retries")
+        public int retries;
+
+        @Label("Prompt Tokens")
+        public int promptTokens;
+
+        @Label("Completion Tokens")
+        @Description("Estimated at four characters per token")
+        public int completionTokens;
+    }
+
+    @Name("se.spin.SseFlush")
+    @Label("SSE Flush")
+    @Description("One server-sent event written to a client")
+    public static final class SseFlush extends SpinEvent {
+
+        @Label("Event")
+        public String event;
+
+        @Label("Bytes")
+        @DataAmount
+        public int bytes;
+    }
+
+    @Name("se.spin.ImageDownload")
+    @Label("Image Download")
+    @Description("Image generation request and body download")
+    public static final class ImageDownload extends SpinEvent {
+
+        @Label("Status")
+        public int status;
+
+        @Label("Content Type")
+        public String contentType;
+
+        @Label("Bytes")
+        @DataAmount
+        public int bytes;
+    }
+}
@@ -0,0 +1,159 @@
+package se.spin.prototype.replay;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Copies upstream streaming responses to recording files as they pass, for the replay profile
+@Component
+@Profile("!replay")
+@ConditionalOnProperty(name = "spin.replay.record", havingValue = "true")
+public class SseRecorder implements ExchangeFilterFunction {
+
+    private static final Logger log = LoggerFactory.getLogger(SseRecorder.class);
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final Path directory;
+    private final int maxRecordings;
+
+    private final AtomicInteger recorded = new AtomicInteger();
+    private final ExecutorService writer;
+
+    private final Counter saved;
+    private final Counter failed;
+
+    public SseRecorder(MeterRegistry meterRegistry,
+                       @Value("${spin.replay.directory:recordings}") String directory,
+                       @Value("${spin.replay.max-recordings:1000}") int maxRecordings) {
+
+        this.directory = Path.of(directory);
+        this.maxRecordings = maxRecordings;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spin-sse-recorder");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.saved = meterRegistry.counter("spin.replay.recordings", "result", "saved");
+        this.failed = meterRegistry.counter("spin.replay.recordings", "result", "failed");
+
+        log.info("Recording upstream streams to {}", this.directory.toAbsolutePath());
+    }
+
+    @Override
+    public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+
+        String label = request.attribute(SseRecording.STREAM_ATTRIBUTE).map(Object::toString).orElse(null);
+        if (label == null || recorded.get() >= maxRecordings) {
+            return next.exchange(request);
+        }
+
+        return Mono.defer(() -> {
+
+            long startedAt = System.nanoTime();
+
+            return next.exchange(request).map(response -> {
+
+                Capture capture = new Capture(label, response.statusCode().value(),
+                    response.headers().asHttpHeaders().getFirst(HttpHeaders.CONTENT_TYPE), startedAt);
+
+                return response.mutate()
+                    .body(body -> body
+                        .doOnNext(capture::chunk)
+                        .doOnComplete(() -> save(capture.finish(null)))
+                        .doOnError(ex -> save(capture.finish(ex))))
+                    .build();
+            });
+        });
+    }
+
+    private void save(SseRecording recording) {
+
+        int sequence = recorded.incrementAndGet();
+        if (sequence > maxRecordings) {
+            return;
+        }
+
+        Path path = directory.resolve(recording.label() + "-" + LocalDateTime.now().format(FILE_TIME) + "-" + sequence + SseRecording.FILE_SUFFIX);
+
+        writer.execute(() -> {
+            try {
+                recording.write(path);
+                saved.increment();
+                log.debug("Recorded {} chunks ({} bytes) to {}", recording.chunks().size(), recording.bodyBytes(), path);
+            } catch (IOException e) {
+                failed.increment();
+                log.warn("Failed to write SSE recording {}", path, e);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        writer.shutdown();
+        writer.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    // Body callbacks of one exchange arrive in order, one at a time
+    private static final class Capture {
+
+        private final String label;
+        private final int status;
+        private final String contentType;
+        private final long headersMicros;
+        private final long recordedAt = System.currentTimeMillis();
+        private final List<SseRecording.Chunk> chunks = new ArrayList<>();
+
+        private long lastNanos;
+
+        private Capture(String label, int status, String contentType, long startedAt) {
+            this.label = label;
+            this.status = status;
+            this.contentType = contentType;
+            this.lastNanos = System.nanoTime();
+            this.headersMicros = (lastNanos - startedAt) / 1000;
+        }
+
+        // Copied without moving the read position, so the decoder downstream still sees every byte
+        private void chunk(DataBuffer buffer) {
+
+            long now = System.nanoTime();
+            byte[] data = new byte[buffer.readableByteCount()];
+            int position = buffer.readPosition();
+            buffer.read(data);
+            buffer.readPosition(position);
+
+            chunks.add(new SseRecording.Chunk((now - lastNanos) / 1000, data));
+            lastNanos = now;
+        }
+
+        private SseRecording finish(Throwable error) {
+            return new SseRecording(label, recordedAt, status, contentType, headersMicros, List.copyOf(chunks),
+                error == null, error != null ? error.getClass().getSimpleName() + ": " + error.getMessage() : null);
+        }
+    }
+}
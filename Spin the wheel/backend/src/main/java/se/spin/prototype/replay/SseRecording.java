@@ -0,0 +1,105 @@
+package se.spin.prototype.replay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// One upstream streaming exchange with the raw chunks as they arrived. Gzipped file layout: int magic, short version,
+// UTF label, long recordedAt, int status, UTF contentType, long headersMicros, int chunks,
+// { long delayMicros, int length, byte[length] } per chunk, boolean completed, UTF error
+public record SseRecording(String label,
+                           long recordedAt,
+                           int status,
+                           String contentType,
+                           long headersMicros,
+                           List<Chunk> chunks,
+                           boolean completed,
+                           String error) {
+
+    // Request attribute naming the stream ("story", "compare"); only requests carrying it are recorded or replayed
+    public static final String STREAM_ATTRIBUTE = SseRecording.class.getName() + ".stream";
+
+    public static final String FILE_SUFFIX = ".sse.gz";
+
+    private static final int MAGIC = 0x53535352;
+    private static final short VERSION = 1;
+
+    // delayMicros is measured from the previous chunk, or from the response headers for the first one
+    public record Chunk(long delayMicros, byte[] data) {}
+
+    public long bodyBytes() {
+        long bytes = 0;
+        for (Chunk chunk : chunks) {
+            bytes += chunk.data().length;
+        }
+        return bytes;
+    }
+
+    public void write(Path path) throws IOException {
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(path))))) {
+
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeUTF(label);
+            out.writeLong(recordedAt);
+            out.writeInt(status);
+            out.writeUTF(contentType != null ? contentType : "");
+            out.writeLong(headersMicros);
+
+            out.writeInt(chunks.size());
+            for (Chunk chunk : chunks) {
+                out.writeLong(chunk.delayMicros());
+                out.writeInt(chunk.data().length);
+                out.write(chunk.data());
+            }
+
+            out.writeBoolean(completed);
+            out.writeUTF(error != null ? error : "");
+        }
+    }
+
+    public static SseRecording read(Path path) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                throw new IOException(path + " is not a version " + VERSION + " SSE recording");
+            }
+
+            String label = in.readUTF();
+            long recordedAt = in.readLong();
+            int status = in.readInt();
+            String contentType = in.readUTF();
+            long headersMicros = in.readLong();
+
+            int count = in.readInt();
+            List<Chunk> chunks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long delayMicros = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                chunks.add(new Chunk(delayMicros, data));
+            }
+
+            boolean completed = in.readBoolean();
+            String error = in.readUTF();
+
+            return new SseRecording(label, recordedAt, status, contentType.isEmpty() ? null : contentType,
+                headersMicros, List.copyOf(chunks), completed, error.isEmpty() ? null : error);
+        }
+    }
+}
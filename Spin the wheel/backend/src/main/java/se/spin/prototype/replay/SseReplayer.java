@@ -0,0 +1,152 @@
+package se.spin.prototype.replay;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// Answers upstream streaming requests from recorded files (replay profile), round-robin per stream label.
+// speed 1 keeps the recorded timings, 10 plays ten times faster, 0 sends everything at once
+@Component
+@Profile("replay")
+public class SseReplayer implements ExchangeFilterFunction {
+
+    private static final Logger log = LoggerFactory.getLogger(SseReplayer.class);
+
+    private final double speed;
+    private final List<SseRecording> all;
+    private final Map<String, List<SseRecording>> byLabel = new TreeMap<>();
+    private final Map<String, AtomicInteger> cursors = new ConcurrentHashMap<>();
+
+    private final Counter replayed;
+    private final Counter missing;
+
+    public SseReplayer(MeterRegistry meterRegistry,
+                       @Value("${spin.replay.directory:recordings}") String directory,
+                       @Value("${spin.replay.speed:1.0}") double speed) {
+
+        this.speed = speed;
+        this.all = load(Path.of(directory));
+        for (SseRecording recording : all) {
+            byLabel.computeIfAbsent(recording.label(), label -> new ArrayList<>()).add(recording);
+        }
+
+        this.replayed = meterRegistry.counter("spin.replay.exchanges", "result", "replayed");
+        this.missing = meterRegistry.counter("spin.replay.exchanges", "result", "no_recording");
+
+        log.info("Replaying {} upstream recordings from {} at speed {} ({})",
+            all.size(), Path.of(directory).toAbsolutePath(), speed, byLabel.keySet());
+    }
+
+    @Override
+    public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+
+        String label = request.attribute(SseRecording.STREAM_ATTRIBUTE).map(Object::toString).orElse(null);
+        if (label == null) {
+            return next.exchange(request);
+        }
+
+        SseRecording recording = next(label);
+        if (recording == null) {
+            missing.increment();
+            return Mono.just(ClientResponse.create(HttpStatus.SERVICE_UNAVAILABLE)
+                .body("No SSE recording to replay for " + label)
+                .build());
+        }
+
+        replayed.increment();
+
+        ClientResponse.Builder response = ClientResponse.create(HttpStatusCode.valueOf(recording.status()))
+            .body(body(recording));
+        if (recording.contentType() != null) {
+            response.header(HttpHeaders.CONTENT_TYPE, recording.contentType());
+        }
+
+        return Mono.just(response.build()).delayElement(scaled(recording.headersMicros()));
+    }
+
+    private SseRecording next(String label) {
+
+        List<SseRecording> candidates = byLabel.getOrDefault(label, all);
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        int index = cursors.computeIfAbsent(label, key -> new AtomicInteger()).getAndIncrement();
+        return candidates.get(Math.floorMod(index, candidates.size()));
+    }
+
+    private Flux<DataBuffer> body(SseRecording recording) {
+
+        Flux<DataBuffer> chunks = Flux.fromIterable(recording.chunks())
+            .concatMap(chunk -> {
+                DataBuffer buffer = DefaultDataBufferFactory.sharedInstance.wrap(chunk.data());
+                Duration delay = scaled(chunk.delayMicros());
+                return delay.isZero() ? Mono.just(buffer) : Mono.just(buffer).delayElement(delay);
+            });
+
+        if (recording.completed()) {
+            return chunks;
+        }
+
+        return chunks.concatWith(Mono.error(() -> new IOException("Replayed upstream failure: " + recording.error())));
+    }
+
+    private Duration scaled(long micros) {
+        if (speed <= 0 || micros <= 0) {
+            return Duration.ZERO;
+        }
+        return Duration.ofNanos((long) (micros * 1000 / speed));
+    }
+
+    private static List<SseRecording> load(Path directory) {
+
+        if (!Files.isDirectory(directory)) {
+            log.warn("No SSE recordings directory at {}", directory.toAbsolutePath());
+            return List.of();
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+
+            List<SseRecording> recordings = new ArrayList<>();
+            for (Path file : files.filter(path -> path.getFileName().toString().endsWith(SseRecording.FILE_SUFFIX)).sorted().toList()) {
+                try {
+                    recordings.add(SseRecording.read(file));
+                } catch (IOException e) {
+                    log.warn("Skipping unreadable SSE recording {}", file, e);
+                }
+            }
+            return List.copyOf(recordings);
+
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list SSE recordings in " + directory, e);
+        }
+    }
+}
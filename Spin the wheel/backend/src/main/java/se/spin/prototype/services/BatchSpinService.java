@@ -0,0 +1,88 @@
+package se.spin.prototype.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import se.spin.prototype.Beans.BatchSpinResult;
+import se.spin.prototype.Beans.SeedResult;
+import se.spin.prototype.Beans.SpinArguments;
+import se.spin.prototype.tracing.Span;
+import se.spin.prototype.tracing.Tracer;
+import se.spin.prototype.util.Deadline;
+import se.spin.prototype.util.SpinKey;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Component
+public class BatchSpinService {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchSpinService.class);
+
+    private final FirestoreService firestoreService;
+    private final HuggingFaceService huggingFaceService;
+    private final int parallelism;
+    private final long itemBudgetMillis;
+
+    public BatchSpinService(FirestoreService firestoreService,
+                            HuggingFaceService huggingFaceService,
+                            @Value("${spin.batch.parallelism:4}") int parallelism,
+                            @Value("${spin.batch.item-budget-ms:60000}") long itemBudgetMillis) {
+        this.firestoreService = firestoreService;
+        this.huggingFaceService = huggingFaceService;
+        this.parallelism = parallelism;
+        this.itemBudgetMillis = itemBudgetMillis;
+    }
+
+    // Emits one result per distinct spin, in completion order
+    public Flux<BatchSpinResult> generate(List<SpinArguments> spins) {
+
+        Map<SpinKey, List<Integer>> unique = new LinkedHashMap<>();
+        for (int i = 0; i < spins.size(); i++) {
+            unique.computeIfAbsent(SpinKey.of(spins.get(i)), k -> new ArrayList<>()).add(i);
+        }
+
+        log.info("Batch of {} spins, {} distinct", spins.size(), unique.size());
+
+        // The work runs on reactor threads, so the request deadline and span are carried explicitly.
+        // The request deadline covers the seed lookup; each generation gets a budget of its own.
+        Deadline deadline = Deadline.current();
+        Span span = Tracer.current();
+
+        return Mono.fromCallable(deadline.wrap(Tracer.wrap(span, () -> firestoreService.fetchSeedsOrFallback(unique.keySet()))))
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMapMany(seeds -> Flux.fromIterable(unique.entrySet())
+                .flatMap(entry -> generateOne(entry.getKey(), entry.getValue(), seeds.get(entry.getKey()), span), parallelism));
+    }
+
+    // The item's budget starts when flatMap subscribes to it, not when the batch arrived
+    private Mono<BatchSpinResult> generateOne(SpinKey key, List<Integer> indexes, SeedResult seed, Span span) {
+
+        SpinArguments arguments = key.toArguments();
+
+        BatchSpinResult result = new BatchSpinResult();
+        result.setIndexes(indexes);
+        result.setArguments(arguments);
+        result.setSources(seed.getLink() != null && !seed.getLink().isBlank() ? List.of(seed.getLink()) : List.of());
+
+        return Mono.defer(() -> Mono.fromCallable(Deadline.after(itemBudgetMillis).wrap(Tracer.wrap(span, () -> huggingFaceService.generateStory(arguments, seed)))))
+            .subscribeOn(Schedulers.boundedElastic())
+            .map(text -> {
+                result.setStatus("ok");
+                result.setGeneratedText(text);
+                return result;
+            })
+            .onErrorResume(ex -> {
+                log.warn("Batch generation failed for {}", key, ex);
+                result.setStatus("error");
+                result.setError(ex.getMessage());
+                return Mono.just(result);
+            });
+    }
+}
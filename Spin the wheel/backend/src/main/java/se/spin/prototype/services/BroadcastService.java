@@ -0,0 +1,411 @@
+package se.spin.prototype.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import se.spin.prototype.Beans.SeedResult;
+import se.spin.prototype.Beans.SpinArguments;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One story generation fanned out to every viewer of a named channel through a ring buffer. Each viewer
+// has its own cursor and pump task, so a slow or stalled viewer only delays itself
+@Component
+public class BroadcastService {
+
+    private static final Logger log = LoggerFactory.getLogger(BroadcastService.class);
+
+    // Events sent per pump iteration before the channel lock is taken again
+    private static final int PUMP_BATCH = 64;
+
+    private static final long IDLE = Long.MIN_VALUE;
+    private static final long STALLED = Long.MAX_VALUE;
+
+    private final HuggingFaceService huggingFaceService;
+    private final StreamDrainManager streamDrainManager;
+    private final ObjectMapper objectMapper;
+
+    private final int bufferSize;
+    private final int maxChannels;
+    private final long sendTimeLimitNanos;
+    private final ThreadPoolExecutor pumpExecutor;
+    private final ScheduledExecutorService watchdog;
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    private final Counter lagged;
+    private final Counter disconnected;
+    private final Counter stalled;
+
+    public BroadcastService(HuggingFaceService huggingFaceService,
+                            StreamDrainManager streamDrainManager,
+                            ObjectMapper objectMapper,
+                            MeterRegistry meterRegistry,
+                            @Value("${spin.broadcast.buffer-size:1024}") int bufferSize,
+                            @Value("${spin.broadcast.max-channels:64}") int maxChannels,
+                            @Value("${spin.broadcast.pump-threads:4}") int pumpThreads,
+                            @Value("${spin.broadcast.send-time-limit-ms:10000}") long sendTimeLimitMillis) {
+
+        this.huggingFaceService = huggingFaceService;
+        this.streamDrainManager = streamDrainManager;
+        this.objectMapper = objectMapper;
+        this.bufferSize = bufferSize;
+        this.maxChannels = maxChannels;
+        this.sendTimeLimitNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeLimitMillis);
+
+        AtomicInteger counter = new AtomicInteger();
+        this.pumpExecutor = new ThreadPoolExecutor(pumpThreads, pumpThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "spin-broadcast-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "spin-broadcast-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long checkMillis = Math.max(100, sendTimeLimitMillis / 4);
+        this.watchdog.scheduleWithFixedDelay(this::dropStalled, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+
+        this.lagged = meterRegistry.counter("spin.broadcast.events.skipped");
+        this.disconnected = meterRegistry.counter("spin.broadcast.subscribers.disconnected");
+        this.stalled = meterRegistry.counter("spin.broadcast.subscribers.stalled");
+        meterRegistry.gauge("spin.broadcast.channels", channels, Map::size);
+        meterRegistry.gauge("spin.broadcast.subscribers", channels,
+            map -> map.values().stream().mapToInt(channel -> channel.subscribers.size()).sum());
+    }
+
+    // Starts a generation on the channel, replacing one that is still running
+    public void publishStory(String name, SpinArguments arguments, SeedResult seed) {
+
+        // Assembled outside the locks: building the prompt scans the seed index
+        Flux<String> story = huggingFaceService.streamStory(arguments, seed);
+        Channel channel;
+
+        // Held from lookup until the generation is attached, so the channel cannot be evicted as idle in between
+        synchronized (channels) {
+
+            channel = channel(name);
+
+            synchronized (channel) {
+
+                if (channel.generation != null) {
+                    channel.generation.dispose();
+                }
+
+                long generationId = ++channel.generationId;
+                channel.generationStart = channel.head;
+                append(channel, "spin", toJson(arguments));
+                append(channel, "sources", seed.getLink() != null && !seed.getLink().isBlank() ? seed.getLink() : "");
+
+                channel.generation = story
+                    .subscribe(
+                        chunk -> publish(channel, generationId, "message", chunk),
+                        ex -> {
+                            log.warn("Broadcast generation on channel {} failed", name, ex);
+                            publish(channel, generationId, "error", ex instanceof ResponseStatusException status ? status.getReason() : "Generation failed");
+                        },
+                        () -> publish(channel, generationId, "done", ""));
+            }
+        }
+
+        signalAll(channel);
+    }
+
+    // lastEventId is the client's Last-Event-ID; without one the viewer starts at the current generation
+    public SseEmitter subscribe(String name, Long lastEventId) {
+
+        SseEmitter emitter = new SseEmitter(0L);
+        Channel channel;
+        Subscriber subscriber;
+
+        // Held from lookup until the subscriber is added, so the channel cannot be evicted as idle in between
+        synchronized (channels) {
+
+            channel = channel(name);
+
+            synchronized (channel) {
+                long cursor = lastEventId != null ? lastEventId + 1 : channel.generationStart;
+                subscriber = new Subscriber(emitter, Math.min(cursor, channel.head));
+                channel.subscribers.add(subscriber);
+            }
+        }
+
+        Runnable remove = () -> channel.subscribers.remove(subscriber);
+        try {
+            streamDrainManager.track(emitter, "broadcast", () -> caughtUp(channel, subscriber), remove);
+        } catch (ResponseStatusException e) {
+            remove.run();
+            throw e;
+        }
+
+        signal(channel, subscriber);
+        return emitter;
+    }
+
+    // Nothing left to send until another generation starts
+    private boolean caughtUp(Channel channel, Subscriber subscriber) {
+        synchronized (channel) {
+            return channel.isIdle() && subscriber.cursor == channel.head && !subscriber.scheduled.get();
+        }
+    }
+
+    // Called with the channels monitor held
+    private Channel channel(String name) {
+
+        if (channels.size() >= maxChannels && !channels.containsKey(name) && !evictIdleChannel()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many broadcast channels");
+        }
+
+        return channels.computeIfAbsent(name, key -> new Channel(bufferSize));
+    }
+
+    // Called with the channels monitor held
+    private boolean evictIdleChannel() {
+
+        Channel oldest = null;
+        String oldestName = null;
+
+        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+            Channel channel = entry.getValue();
+            if (channel.subscribers.isEmpty() && channel.isIdle() && (oldest == null || channel.lastPublished < oldest.lastPublished)) {
+                oldest = channel;
+                oldestName = entry.getKey();
+            }
+        }
+
+        if (oldestName == null) {
+            return false;
+        }
+
+        channels.remove(oldestName);
+        return true;
+    }
+
+    private void publish(Channel channel, long generationId, String event, String data) {
+
+        synchronized (channel) {
+            // A replaced generation may still deliver a signal that was in flight when it was disposed
+            if (channel.generationId != generationId) {
+                return;
+            }
+            append(channel, event, data);
+        }
+        signalAll(channel);
+    }
+
+    // Called with the channel monitor held
+    private void append(Channel channel, String event, String data) {
+
+        channel.ring[(int) (channel.head % channel.ring.length)] = new Event(channel.head, event, data);
+        channel.head++;
+        channel.lastPublished = System.currentTimeMillis();
+    }
+
+    private void signalAll(Channel channel) {
+        for (Subscriber subscriber : channel.subscribers) {
+            signal(channel, subscriber);
+        }
+    }
+
+    private void signal(Channel channel, Subscriber subscriber) {
+        if (subscriber.scheduled.compareAndSet(false, true)) {
+            pumpExecutor.execute(() -> pump(channel, subscriber));
+        }
+    }
+
+    private void pump(Channel channel, Subscriber subscriber) {
+
+        List<Event> batch = new ArrayList<>(PUMP_BATCH);
+
+        try {
+
+            while (true) {
+
+                long skipped = 0;
+                batch.clear();
+
+                synchronized (channel) {
+
+                    long oldest = Math.max(0, channel.head - channel.ring.length);
+                    if (subscriber.cursor < oldest) {
+                        skipped = oldest - subscriber.cursor;
+                        subscriber.cursor = oldest;
+                    }
+
+                    long end = Math.min(channel.head, subscriber.cursor + PUMP_BATCH);
+                    for (long seq = subscriber.cursor; seq < end; seq++) {
+                        batch.add(channel.ring[(int) (seq % channel.ring.length)]);
+                    }
+                    subscriber.cursor = end;
+
+                    if (batch.isEmpty() && skipped == 0) {
+                        // Cleared under the lock, so an append after this point schedules a new pump
+                        subscriber.scheduled.set(false);
+                        return;
+                    }
+                }
+
+                if (skipped > 0) {
+                    lagged.increment(skipped);
+                    send(subscriber, SseEmitter.event().name("lagged").data(skipped));
+                }
+
+                for (Event event : batch) {
+                    send(subscriber, SseEmitter.event().id(Long.toString(event.seq())).name(event.name()).data(event.data()));
+                }
+            }
+
+        } catch (IOException | IllegalStateException e) {
+            // The viewer went away or was dropped as stalled; only this subscriber is affected
+            if (channel.subscribers.remove(subscriber)) {
+                disconnected.increment();
+            }
+            subscriber.emitter.completeWithError(e);
+        }
+    }
+
+    // One write, timed so the watchdog can see it stall
+    private void send(Subscriber subscriber, SseEmitter.SseEventBuilder event) throws IOException {
+
+        boolean stalledOut;
+        subscriber.sendingSince.set(System.nanoTime());
+        try {
+            subscriber.emitter.send(event);
+        } finally {
+            // Exactly one of this and the watchdog's compareAndSet sees the write, so the pool shrinks once per growth
+            stalledOut = subscriber.sendingSince.getAndSet(IDLE) == STALLED;
+            if (stalledOut) {
+                resizePump(-1);
+            }
+        }
+
+        if (stalledOut) {
+            throw new IOException("Dropped after exceeding the send time limit");
+        }
+    }
+
+    // Drops viewers stuck in one write past the limit; the pump thread they hold is replaced until the write returns
+    private void dropStalled() {
+
+        long now = System.nanoTime();
+
+        for (Channel channel : channels.values()) {
+            for (Subscriber subscriber : channel.subscribers) {
+
+                long since = subscriber.sendingSince.get();
+                if (since == IDLE || since == STALLED || now - since < sendTimeLimitNanos) {
+                    continue;
+                }
+
+                // Grown first, so the pool never drops below its configured size
+                resizePump(1);
+                if (!subscriber.sendingSince.compareAndSet(since, STALLED)) {
+                    resizePump(-1);
+                    continue;
+                }
+
+                channel.subscribers.remove(subscriber);
+                stalled.increment();
+                log.info("Dropping broadcast viewer stalled in a write for {} ms", TimeUnit.NANOSECONDS.toMillis(now - since));
+            }
+        }
+    }
+
+    private void resizePump(int delta) {
+        synchronized (pumpExecutor) {
+            if (delta > 0) {
+                pumpExecutor.setMaximumPoolSize(pumpExecutor.getMaximumPoolSize() + delta);
+                pumpExecutor.setCorePoolSize(pumpExecutor.getCorePoolSize() + delta);
+            } else {
+                pumpExecutor.setCorePoolSize(pumpExecutor.getCorePoolSize() + delta);
+                pumpExecutor.setMaximumPoolSize(pumpExecutor.getMaximumPoolSize() + delta);
+            }
+        }
+    }
+
+    private String toJson(SpinArguments arguments) {
+        try {
+            return objectMapper.writeValueAsString(arguments);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize spin arguments", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        channels.values().forEach(channel -> {
+            Disposable generation = channel.generation;
+            if (generation != null) {
+                generation.dispose();
+            }
+        });
+        watchdog.shutdownNow();
+        pumpExecutor.shutdownNow();
+    }
+
+    private record Event(long seq, String name, String data) {}
+
+    private static final class Channel {
+
+        private final Event[] ring;
+        private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+        // Guarded by the channel monitor
+        private long head;
+        private long generationStart;
+        private long generationId;
+        private Disposable generation;
+        private long lastPublished = System.currentTimeMillis();
+
+        private Channel(int bufferSize) {
+            this.ring = new Event[bufferSize];
+        }
+
+        private synchronized boolean isIdle() {
+            return generation == null || generation.isDisposed();
+        }
+    }
+
+    private static final class Subscriber {
+
+        private final SseEmitter emitter;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        // System.nanoTime() when the write in progress started; IDLE between writes, STALLED once dropped
+        private final AtomicLong sendingSince = new AtomicLong(IDLE);
+
+        // Guarded by the channel monitor
+        private long cursor;
+
+        private Subscriber(SseEmitter emitter, long cursor) {
+            this.emitter = emitter;
+            this.cursor = cursor;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package se.spin.prototype.services;
+
+import java.util.List;
+
+// The per-request part of a chat completion; model and sampling parameters are fixed by ChatCompletionWriter
+public record ChatCompletionRequest(List<Message> messages, int maxTokens, boolean stream) {
+
+    public static ChatCompletionRequest of(String prompt, int maxTokens, boolean stream) {
+        return new ChatCompletionRequest(List.of(Message.user(prompt)), maxTokens, stream);
+    }
+
+    public record Message(String role, String content) {
+
+        public static Message user(String content) {
+            return new Message("user", content);
+        }
+
+        public static Message assistant(String content) {
+            return new Message("assistant", content);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package se.spin.prototype.services;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Serializes chat completion requests to JSON by hand, with the constant head encoded once
+public final class ChatCompletionWriter {
+
+    // Scratch arrays that grew past this are not kept, so one huge prompt does not pin memory per thread
+    private static final int MAX_RETAINED_SCRATCH = 64 * 1024;
+
+    private static final byte[] ROLE = bytes("{\"role\":");
+    private static final byte[] CONTENT = bytes(",\"content\":");
+    private static final byte[] MAX_TOKENS = bytes("],\"max_tokens\":");
+    private static final byte[] STREAM_TRUE = bytes(",\"stream\":true}");
+    private static final byte[] STREAM_FALSE = bytes(",\"stream\":false}");
+    private static final byte[] HEX = bytes("0123456789abcdef");
+
+    private final byte[] head;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    public ChatCompletionWriter(String model, double temperature, double topP) {
+
+        Scratch out = new Scratch();
+        out.write(bytes("{\"model\":"));
+        writeString(out, model);
+        out.write(bytes(",\"temperature\":" + temperature + ",\"top_p\":" + topP + ",\"messages\":["));
+
+        this.head = out.toByteArray();
+    }
+
+    public void writeTo(ChatCompletionRequest request, OutputStream body) throws IOException {
+
+        Scratch out = encode(request);
+        try {
+            body.write(out.bytes, 0, out.length);
+        } finally {
+            release(out);
+        }
+    }
+
+    public DataBuffer write(ChatCompletionRequest request, DataBufferFactory bufferFactory) {
+
+        Scratch out = encode(request);
+        try {
+            DataBuffer buffer = bufferFactory.allocateBuffer(out.length);
+            buffer.write(out.bytes, 0, out.length);
+            return buffer;
+        } finally {
+            release(out);
+        }
+    }
+
+    private Scratch encode(ChatCompletionRequest request) {
+
+        Scratch out = scratch.get();
+        out.length = 0;
+
+        out.write(head);
+
+        boolean first = true;
+        for (ChatCompletionRequest.Message message : request.messages()) {
+            if (!first) {
+                out.write((byte) ',');
+            }
+            first = false;
+
+            out.write(ROLE);
+            writeString(out, message.role());
+            out.write(CONTENT);
+            writeString(out, message.content());
+            out.write((byte) '}');
+        }
+
+        out.write(MAX_TOKENS);
+        writeInt(out, request.maxTokens());
+        out.write(request.stream() ? STREAM_TRUE : STREAM_FALSE);
+
+        return out;
+    }
+
+    private void release(Scratch out) {
+        if (out.bytes.length > MAX_RETAINED_SCRATCH) {
+            scratch.remove();
+        }
+    }
+
+    // JSON string literal, UTF-8 encoded
+    private static void writeString(Scratch out, String value) {
+
+        int n = value.length();
+
+        // Worst case is six bytes per char (an escaped control character), plus the quotes
+        out.ensure(n * 6 + 2);
+        byte[] b = out.bytes;
+        int p = out.length;
+
+        b[p++] = '"';
+
+        for (int i = 0; i < n; i++) {
+
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                b[p++] = '\\';
+                b[p++] = (byte) c;
+            } else if (c < 0x20) {
+                b[p++] = '\\';
+                switch (c) {
+                    case '\n' -> b[p++] = 'n';
+                    case '\r' -> b[p++] = 'r';
+                    case '\t' -> b[p++] = 't';
+                    default -> {
+                        b[p++] = 'u';
+                        b[p++] = '0';
+                        b[p++] = '0';
+                        b[p++] = HEX[c >> 4];
+                        b[p++] = HEX[c & 0xF];
+                    }
+                }
+            } else if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xC0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                b[p++] = (byte) (0xF0 | (cp >> 18));
+                b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                // Lone surrogates become U+FFFD, as String.getBytes would do
+                int cp = Character.isSurrogate(c) ? 0xFFFD : c;
+                b[p++] = (byte) (0xE0 | (cp >> 12));
+                b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (cp & 0x3F));
+            }
+        }
+
+        b[p++] = '"';
+        out.length = p;
+    }
+
+    private static void writeInt(Scratch out, int value) {
+
+        if (value < 0) {
+            out.write((byte) '-');
+            value = -value;
+        }
+
+        out.ensure(10);
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+
+        int p = out.length + digits;
+        out.length = p;
+        do {
+            out.bytes[--p] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+    }
+
+    private static byte[] bytes(String ascii) {
+        return ascii.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Scratch {
+
+        private byte[] bytes = new byte[4096];
+        private int length;
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, length + extra)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+        }
+
+        private void write(byte value) {
+            ensure(1);
+            bytes[length++] = value;
+        }
+
+        private void write(byte[] value) {
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, length, value.length);
+            length += value.length;
+        }
+
+        private byte[] toByteArray() {
+            byte[] copy = new byte[length];
+            System.arraycopy(bytes, 0, copy, 0, length);
+            return copy;
+        }
+    }
+}
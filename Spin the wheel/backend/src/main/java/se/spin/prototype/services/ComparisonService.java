@@ -0,0 +1,123 @@
+package se.spin.prototype.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import se.spin.prototype.Beans.GeneratedTextSources;
+import se.spin.prototype.Beans.SeedResult;
+import se.spin.prototype.Beans.SpinArguments;
+import se.spin.prototype.util.GenerationKeys;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+// Resolves comparison inputs with as few upstream calls as possible: request text, then cache, then generation
+@Component
+public class ComparisonService {
+
+    private final FirestoreService firestoreService;
+    private final HuggingFaceService huggingFaceService;
+    private final GenerationCache generationCache;
+
+    private final Counter avoidedClientText;
+    private final Counter avoidedCachedStory;
+    private final Counter avoidedCachedComparison;
+    private final Counter upstreamCalls;
+
+    public ComparisonService(FirestoreService firestoreService,
+                             HuggingFaceService huggingFaceService,
+                             GenerationCache generationCache,
+                             MeterRegistry meterRegistry) {
+        this.firestoreService = firestoreService;
+        this.huggingFaceService = huggingFaceService;
+        this.generationCache = generationCache;
+
+        this.avoidedClientText = meterRegistry.counter("spin.compare.upstream.avoided", "reason", "client_text");
+        this.avoidedCachedStory = meterRegistry.counter("spin.compare.upstream.avoided", "reason", "cached_story");
+        this.avoidedCachedComparison = meterRegistry.counter("spin.compare.upstream.avoided", "reason", "cached_comparison");
+        this.upstreamCalls = meterRegistry.counter("spin.compare.upstream.calls");
+    }
+
+    public PreparedComparison prepare(SpinArguments firstArgs, GeneratedTextSources firstSupplied,
+                                      SpinArguments secondArgs, GeneratedTextSources secondSupplied) {
+
+        ResolvedStory first = resolveStory(firstArgs, firstSupplied);
+        ResolvedStory second = resolveStory(secondArgs, secondSupplied);
+
+        List<String> sources = new ArrayList<>(first.sources());
+        sources.addAll(second.sources());
+
+        String key = GenerationKeys.comparison(firstArgs, first.text(), secondArgs, second.text());
+        boolean cached = generationCache.contains(key);
+
+        if (cached) {
+            avoidedCachedComparison.increment();
+        }
+
+        return new PreparedComparison(firstArgs, first.text(), secondArgs, second.text(), sources, key, cached);
+    }
+
+    public Flux<String> stream(PreparedComparison comparison) {
+
+        // Decompressed chunk by chunk into the stream; generated after all if it was evicted since prepare
+        if (comparison.cached()) {
+            return generationCache.streamText(comparison.key())
+                .switchIfEmpty(Flux.defer(() -> generate(comparison)));
+        }
+
+        return generate(comparison);
+    }
+
+    private Flux<String> generate(PreparedComparison comparison) {
+
+        return generationCache.singleFlight(comparison.key(), () -> {
+            upstreamCalls.increment();
+            return huggingFaceService.streamCompareStories(
+                comparison.firstArgs(), comparison.secondArgs(), comparison.firstStory(), comparison.secondStory());
+        });
+    }
+
+    private ResolvedStory resolveStory(SpinArguments arguments, GeneratedTextSources supplied) {
+
+        if (supplied != null && supplied.getGeneratedText() != null && !supplied.getGeneratedText().isBlank()) {
+            avoidedClientText.increment();
+            return new ResolvedStory(supplied.getGeneratedText(), supplied.getSources() != null ? supplied.getSources() : List.of());
+        }
+
+        String key = GenerationKeys.story(arguments);
+        Optional<GenerationRecord> cached = generationCache.find(key);
+        if (cached.isPresent()) {
+            avoidedCachedStory.increment();
+            return new ResolvedStory(cached.get().text(), sources(cached.get().seedLink()));
+        }
+
+        SeedResult seed = firestoreService.fetchSeedOrFallback(arguments);
+
+        // Streamed rather than generateStory, so a story spin of the same key already running anywhere is joined
+        String text = generationCache.singleFlight(key, () -> {
+                upstreamCalls.increment();
+                return huggingFaceService.streamStory(arguments, seed);
+            })
+            .collect(Collectors.joining())
+            .block();
+
+        return new ResolvedStory(text, sources(seed.getLink()));
+    }
+
+    private static List<String> sources(String link) {
+        return (link != null && !link.isBlank()) ? List.of(link) : List.of();
+    }
+
+    private record ResolvedStory(String text, List<String> sources) {}
+
+    public record PreparedComparison(SpinArguments firstArgs,
+                                     String firstStory,
+                                     SpinArguments secondArgs,
+                                     String secondStory,
+                                     List<String> sources,
+                                     String key,
+                                     boolean cached) {}
+}
@@ -0,0 +1,26 @@
+package se.spin.prototype.services;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+// Part of the readiness group: an instance only takes traffic once Firestore initialization has finished
+@Component
+public class FirestoreHealthIndicator implements HealthIndicator {
+
+    private final FirestoreService firestoreService;
+
+    public FirestoreHealthIndicator(FirestoreService firestoreService) {
+        this.firestoreService = firestoreService;
+    }
+
+    @Override
+    public Health health() {
+
+        if (!firestoreService.isReady()) {
+            return Health.outOfService().withDetail("firestore", "initializing").build();
+        }
+
+        return Health.up().withDetail("firestore", firestoreService.isEnabled() ? "connected" : "disabled").build();
+    }
+}
@@ -6,52 +6,154 @@ import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteBatch;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
 import com.google.firebase.cloud.FirestoreClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ResponseStatusException;
 import se.spin.prototype.Beans.Gender;
 import se.spin.prototype.Beans.GenderEnum;
 import se.spin.prototype.Beans.SeedResult;
+import se.spin.prototype.Beans.SpinArguments;
+import se.spin.prototype.profiling.SpinEvents;
+import se.spin.prototype.tracing.Span;
+import se.spin.prototype.tracing.Tracer;
+import se.spin.prototype.util.Deadline;
 import se.spin.prototype.util.EnvUtil;
+import se.spin.prototype.util.LruCache;
+import se.spin.prototype.util.SpinKey;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Component
 public class FirestoreService {
 
     private static final Logger log = LoggerFactory.getLogger(FirestoreService.class);
-    private final Firestore firestore;
-    private final boolean firestoreEnabled;
-
-    public FirestoreService() {
-        this.firestore = initFirestoreOrNull();
-        this.firestoreEnabled = (this.firestore != null);
+    private static final String NO_SEED_TEXT = "No matching Firestore seed; use the provided context to craft a new story.";
+    private static final int WHERE_IN_LIMIT = 30;
+    private static final int WRITE_BATCH_LIMIT = 500;
+    private final long queryTimeoutMillis;
+    private final long initWaitMillis;
+
+    // Seeds rarely change; found seeds are kept so repeated spins skip the query
+    private final LruCache<SpinKey, SeedResult> seedCache;
+
+    // Completes with null when Firestore is not configured or failed to initialize
+    private final CompletableFuture<Firestore> firestoreInit;
+
+    public FirestoreService(@Value("${spin.firestore.query-timeout-ms:10000}") long queryTimeoutMillis,
+                            @Value("${spin.firestore.seed-cache-size:2048}") int seedCacheSize,
+                            @Value("${spin.firestore.init-wait-ms:5000}") long initWaitMillis) {
+        this.queryTimeoutMillis = queryTimeoutMillis;
+        this.initWaitMillis = initWaitMillis;
+        this.seedCache = new LruCache<>(seedCacheSize);
+
+        // Credentials and FirebaseApp setup run off the startup path; see isReady()
+        this.firestoreInit = new CompletableFuture<>();
+        Thread init = new Thread(() -> {
+            long startedAt = System.currentTimeMillis();
+            try {
+                firestoreInit.complete(initFirestoreOrNull());
+            } catch (RuntimeException e) {
+                log.error("Failed to initialize Firestore; running with Firestore disabled", e);
+                firestoreInit.complete(null);
+            }
+            log.info("Firestore initialization finished in {} ms", System.currentTimeMillis() - startedAt);
+        }, "firestore-init");
+        init.setDaemon(true);
+        init.start();
         //seedStories();
     }
 
+    public boolean isReady() {
+        return firestoreInit.isDone();
+    }
+
+    // Request paths wait briefly for initialization, then fail with 503 rather than spin without a seed;
+    // null only when Firestore is disabled or failed to initialize
+    private Firestore firestoreForRequest() {
+
+        try {
+            return firestoreInit.get(Deadline.current().cap(initWaitMillis), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Firestore is still starting; retry shortly");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while waiting for Firestore");
+        } catch (ExecutionException e) {
+            // The init thread completes with null instead of failing
+            return null;
+        }
+    }
+
+    // Background paths wait for initialization
+    private Firestore awaitFirestore() {
+        return firestoreInit.join();
+    }
+
 
     public Optional<SeedResult> fetchSeedText(String city, Integer year, Gender gender) {
 
-        if (!firestoreEnabled) {
+        SpinEvents.SeedLookup event = new SpinEvents.SeedLookup();
+        event.begin();
+        event.outcome = "failed";
+
+        Span span = Tracer.start("firestore.seed_lookup")
+            .attribute("spin.city", city)
+            .attribute("spin.year", year)
+            .attribute("spin.gender", gender != null ? gender.getId() : null);
+
+        try (Tracer.Scope ignored = span.makeCurrent()) {
+            Optional<SeedResult> seed = lookupSeed(city, year, gender, event);
+            event.outcome = seed.isPresent() ? "found" : "missing";
+            event.textLength = seed.map(found -> found.getText().length()).orElse(0);
+            return seed;
+        } catch (RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            event.spin(city, year, gender != null ? gender.getId() : null);
+            event.commit();
+            span.attribute("seed.outcome", event.outcome).attribute("seed.cached", event.cached).end();
+        }
+    }
+
+    private Optional<SeedResult> lookupSeed(String city, Integer year, Gender gender, SpinEvents.SeedLookup event) {
+
+        Firestore firestore = firestoreForRequest();
+        if (firestore == null) {
+            event.outcome = "disabled";
             return Optional.empty();
         }
 
-        if (gender == null || gender.getId() == null) {
+        if (gender == null || gender.getId() == null || year == null) {
             return Optional.empty();
         }
 
+        SpinKey key = new SpinKey(city, year, gender.getId());
+        SeedResult cached = seedCache.get(key);
+        if (cached != null) {
+            event.cached = true;
+            return Optional.of(cached);
+        }
+
         try {
 
             Query query = firestore.collection("stories")
@@ -60,7 +162,7 @@ public class FirestoreService {
                 .whereEqualTo("gender", gender.getId().name())
                 .limit(1);
 
-            QuerySnapshot snapshot = query.get().get();
+            QuerySnapshot snapshot = awaitQuery(query, "seed lookup");
             if (snapshot.isEmpty()) {
                 return Optional.empty();
             }
@@ -73,10 +175,13 @@ public class FirestoreService {
                 return Optional.empty();
             }
             
-            return Optional.of(new SeedResult(
+            SeedResult seed = new SeedResult(
                 text.toString(),
                 link != null ? link.toString() : null
-            ));
+            );
+            seedCache.put(key, seed);
+
+            return Optional.of(seed);
 
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -86,6 +191,257 @@ public class FirestoreService {
         }
     }
 
+    // Bounded by the query timeout and by whatever is left of the current request's budget
+    private QuerySnapshot awaitQuery(Query query, String stage) throws InterruptedException, ExecutionException {
+
+        Deadline deadline = Deadline.current();
+        deadline.check(stage);
+
+        Span span = Tracer.start("firestore.query").attribute("firestore.stage", stage);
+
+        try {
+            QuerySnapshot snapshot = query.get().get(deadline.cap(queryTimeoutMillis), TimeUnit.MILLISECONDS);
+            span.attribute("firestore.documents", snapshot.size());
+            return snapshot;
+        } catch (TimeoutException e) {
+            span.error(e);
+            if (deadline.isExpired()) {
+                throw deadline.expired(stage);
+            }
+            throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "Firestore " + stage + " timed out", e);
+        } catch (ExecutionException | RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    public SeedResult fetchSeedOrFallback(SpinArguments arguments) {
+        return fetchSeedText(arguments.getCity(), arguments.getYear(), arguments.getGender())
+            .orElse(new SeedResult(NO_SEED_TEXT, null));
+    }
+
+    // Batched lookup: one query per 30 cities (Firestore's whereIn limit) instead of one per spin
+    public Map<SpinKey, SeedResult> fetchSeedsOrFallback(Set<SpinKey> keys) {
+
+        Span span = Tracer.start("firestore.seed_batch").attribute("seed.keys", keys.size());
+
+        try (Tracer.Scope ignored = span.makeCurrent()) {
+            return lookupSeeds(keys);
+        } catch (RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    private Map<SpinKey, SeedResult> lookupSeeds(Set<SpinKey> keys) {
+
+        Map<SpinKey, SeedResult> seeds = new HashMap<>();
+        Firestore firestore = firestoreForRequest();
+
+        if (firestore != null && !keys.isEmpty()) {
+
+            List<String> cities = keys.stream().map(SpinKey::city).distinct().toList();
+
+            try {
+
+                for (int i = 0; i < cities.size(); i += WHERE_IN_LIMIT) {
+
+                    List<String> chunk = cities.subList(i, Math.min(i + WHERE_IN_LIMIT, cities.size()));
+                    QuerySnapshot snapshot = awaitQuery(firestore.collection("stories").whereIn("city", chunk), "batched seed lookup");
+
+                    for (QueryDocumentSnapshot doc : snapshot.getDocuments()) {
+
+                        Object text = doc.get("text");
+                        Long year = doc.getLong("year");
+                        String gender = doc.getString("gender");
+
+                        if (text == null || year == null || gender == null) {
+                            continue;
+                        }
+
+                        SpinKey key;
+                        try {
+                            key = new SpinKey(doc.getString("city"), year.intValue(), GenderEnum.valueOf(gender));
+                        } catch (IllegalArgumentException e) {
+                            continue;
+                        }
+
+                        if (keys.contains(key)) {
+                            Object link = doc.get("link");
+                            seeds.putIfAbsent(key, new SeedResult(text.toString(), link != null ? link.toString() : null));
+                        }
+                    }
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Interrupted while querying Firestore", e);
+            } catch (ExecutionException e) {
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to query Firestore", e);
+            }
+        }
+
+        for (SpinKey key : keys) {
+            seeds.putIfAbsent(key, new SeedResult(NO_SEED_TEXT, null));
+        }
+
+        return seeds;
+    }
+
+    public List<SeedDocument> fetchAllSeeds() {
+
+        Firestore firestore = awaitFirestore();
+        if (firestore == null) {
+            return List.of();
+        }
+
+        try {
+
+            List<SeedDocument> seeds = new ArrayList<>();
+
+            for (QueryDocumentSnapshot doc : firestore.collection("stories").get().get().getDocuments()) {
+
+                Object text = doc.get("text");
+                if (text == null) {
+                    continue;
+                }
+
+                Object link = doc.get("link");
+                Long year = doc.getLong("year");
+
+                seeds.add(new SeedDocument(
+                    doc.getId(),
+                    doc.getString("city"),
+                    year != null ? year.intValue() : null,
+                    doc.getString("gender"),
+                    text.toString(),
+                    link != null ? link.toString() : null
+                ));
+            }
+
+            return seeds;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Interrupted while listing Firestore seeds", e);
+        } catch (ExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to list Firestore seeds", e);
+        }
+    }
+
+    // Fills the seed cache from the whole stories collection; waits for initialization
+    public int preloadSeeds() {
+
+        int loaded = 0;
+        for (SeedDocument doc : fetchAllSeeds()) {
+
+            if (doc.city() == null || doc.year() == null || doc.gender() == null) {
+                continue;
+            }
+
+            try {
+                seedCache.put(new SpinKey(doc.city(), doc.year(), GenderEnum.valueOf(doc.gender())), new SeedResult(doc.text(), doc.link()));
+                loaded++;
+            } catch (IllegalArgumentException e) {
+                // Unknown gender value; not reachable through a spin
+            }
+        }
+
+        return loaded;
+    }
+
+    // Waits for initialization
+    public boolean isEnabled() {
+        return awaitFirestore() != null;
+    }
+
+    public void saveGenerations(List<GenerationRecord> records) {
+
+        Firestore firestore = awaitFirestore();
+        if (firestore == null || records.isEmpty()) {
+            return;
+        }
+
+        try {
+
+            for (int i = 0; i < records.size(); i += WRITE_BATCH_LIMIT) {
+
+                WriteBatch batch = firestore.batch();
+
+                for (GenerationRecord record : records.subList(i, Math.min(i + WRITE_BATCH_LIMIT, records.size()))) {
+                    Map<String, Object> doc = new HashMap<>();
+                    doc.put("kind", record.kind());
+                    doc.put("key", record.key());
+                    doc.put("seedLink", record.seedLink());
+                    doc.put("text", record.text());
+                    doc.put("model", record.model());
+                    doc.put("latencyMs", record.latencyMs());
+                    doc.put("promptTokens", record.promptTokens());
+                    doc.put("completionTokens", record.completionTokens());
+                    doc.put("createdAt", record.createdAt());
+
+                    batch.set(firestore.collection("generations").document(), doc);
+                }
+
+                batch.commit().get();
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Interrupted while saving generations", e);
+        } catch (ExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to save generations", e);
+        }
+    }
+
+    public List<GenerationRecord> fetchRecentGenerations(int limit) {
+
+        Firestore firestore = awaitFirestore();
+        if (firestore == null) {
+            return List.of();
+        }
+
+        try {
+
+            List<GenerationRecord> records = new ArrayList<>();
+
+            QuerySnapshot snapshot = firestore.collection("generations")
+                .orderBy("createdAt", Query.Direction.DESCENDING)
+                .limit(limit)
+                .get().get();
+
+            for (QueryDocumentSnapshot doc : snapshot.getDocuments()) {
+                records.add(new GenerationRecord(
+                    doc.getString("kind"),
+                    doc.getString("key"),
+                    doc.getString("seedLink"),
+                    doc.getString("text"),
+                    doc.getString("model"),
+                    longOrZero(doc.getLong("latencyMs")),
+                    (int) longOrZero(doc.getLong("promptTokens")),
+                    (int) longOrZero(doc.getLong("completionTokens")),
+                    longOrZero(doc.getLong("createdAt"))
+                ));
+            }
+
+            return records;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Interrupted while reading generations", e);
+        } catch (ExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to read generations", e);
+        }
+    }
+
+    private static long longOrZero(Long value) {
+        return value != null ? value : 0L;
+    }
+
     private Firestore initFirestoreOrNull() {
 
         try {
@@ -281,6 +637,11 @@ public class FirestoreService {
                 "https://skbl.se/sv/artikel/search?location=Malm%C3%B6&born_start=1980&born_end=2020")
         );
 
+        Firestore firestore = awaitFirestore();
+        if (firestore == null) {
+            return;
+        }
+
         try {
             for (StorySeed seed : seeds) {
             Map<String, Object> doc = new HashMap<>();
@@ -335,4 +696,6 @@ public class FirestoreService {
             return link;
         }
     }
+
+    public record SeedDocument(String id, String city, Integer year, String gender, String text, String link) {}
 }
@@ -0,0 +1,513 @@
+package se.spin.prototype.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.ConnectableFlux;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
+import se.spin.prototype.cluster.SharedCacheException;
+import se.spin.prototype.cluster.SharedGenerationCache;
+import se.spin.prototype.tracing.Span;
+import se.spin.prototype.tracing.Tracer;
+import se.spin.prototype.util.Deadline;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// Near (GenerationStore) plus shared tier cache of finished generations, with single-flight across replicas.
+// Without a reachable shared tier every node generates on its own
+@Component
+public class GenerationCache {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationCache.class);
+
+    // How long shutdown waits for cancelled generations to write their FAILED marker
+    private static final long SHUTDOWN_WAIT_MILLIS = 2000;
+
+    // Progress stream terminators; generated text never contains NUL
+    private static final String DONE = "\u0000done";
+    private static final String FAILED = "\u0000failed";
+
+    private final GenerationStore generationStore;
+    private final SharedGenerationCache shared;
+    private final ObjectMapper objectMapper;
+
+    private final String nodeId;
+    private final Duration valueTtl;
+    private final Duration leaseTtl;
+    private final Duration progressTtl;
+    private final long pollMillis;
+    private final long stallMillis;
+
+    // Generations running or being followed on this node, shared by every local caller of the key
+    private final Map<String, Flux<String>> inFlight = new ConcurrentHashMap<>();
+
+    // Their upstream connections, and the progress streams this node leads, both cut off on shutdown
+    private final Map<String, Disposable> connections = new ConcurrentHashMap<>();
+    private final Set<ProgressMirror> mirrors = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    private final Counter nearHits;
+    private final Counter sharedHits;
+    private final Counter misses;
+    private final Counter sharedErrors;
+    private final Counter leaders;
+    private final Counter followers;
+    private final Counter joined;
+    private final Counter takeovers;
+
+    public GenerationCache(GenerationStore generationStore,
+                           SharedGenerationCache shared,
+                           ObjectMapper objectMapper,
+                           MeterRegistry meterRegistry,
+                           @Value("${spin.cluster.node-id:}") String nodeId,
+                           @Value("${spin.cluster.cache.ttl-minutes:1440}") long valueTtlMinutes,
+                           @Value("${spin.cluster.lease.ttl-ms:60000}") long leaseTtlMillis,
+                           @Value("${spin.cluster.follow.poll-ms:100}") long pollMillis,
+                           @Value("${spin.cluster.follow.stall-ms:15000}") long stallMillis) {
+
+        this.generationStore = generationStore;
+        this.shared = shared;
+        this.objectMapper = objectMapper;
+        this.nodeId = nodeId.isBlank() ? UUID.randomUUID().toString() : nodeId;
+        this.valueTtl = Duration.ofMinutes(valueTtlMinutes);
+        this.leaseTtl = Duration.ofMillis(leaseTtlMillis);
+        this.progressTtl = Duration.ofMillis(leaseTtlMillis * 2);
+        this.pollMillis = pollMillis;
+        this.stallMillis = stallMillis;
+
+        this.nearHits = meterRegistry.counter("spin.cache.lookups", "tier", "near", "result", "hit");
+        this.sharedHits = meterRegistry.counter("spin.cache.lookups", "tier", "shared", "result", "hit");
+        this.misses = meterRegistry.counter("spin.cache.lookups", "tier", "shared", "result", "miss");
+        this.sharedErrors = meterRegistry.counter("spin.cache.shared.errors");
+        this.leaders = meterRegistry.counter("spin.cache.singleflight", "role", "leader");
+        this.followers = meterRegistry.counter("spin.cache.singleflight", "role", "follower");
+        this.joined = meterRegistry.counter("spin.cache.singleflight", "role", "joined");
+        this.takeovers = meterRegistry.counter("spin.cache.singleflight", "role", "takeover");
+        meterRegistry.gauge("spin.cache.singleflight.active", inFlight, Map::size);
+    }
+
+    // Persists the record and makes it visible to the other replicas
+    public void record(GenerationRecord record) {
+
+        generationStore.record(record);
+
+        if (record.key() != null && record.text() != null) {
+            // Completion callbacks run on the HTTP client's event loop, which must not block on the shared tier
+            Schedulers.boundedElastic().schedule(() -> publish(record));
+        }
+    }
+
+    public Optional<GenerationRecord> find(String key) {
+
+        Optional<GenerationRecord> near = generationStore.findLatest(key);
+        if (near.isPresent()) {
+            nearHits.increment();
+            return near;
+        }
+
+        return fetchShared(key);
+    }
+
+    // A shared hit is copied into the near tier, so streamText can serve it afterwards
+    public boolean contains(String key) {
+
+        if (generationStore.contains(key)) {
+            nearHits.increment();
+            return true;
+        }
+
+        return fetchShared(key).isPresent();
+    }
+
+    public Flux<String> streamText(String key) {
+        return generationStore.streamText(key);
+    }
+
+    // Runs generate at most once at a time per key across the cluster. generate is called on a worker thread
+    // with the caller's deadline and span bound; a caller that cancels does not stop the shared stream
+    public Flux<String> singleFlight(String key, Supplier<Flux<String>> generate) {
+
+        Flux<String> running = inFlight.get(key);
+        if (running != null) {
+            joined.increment();
+            return running;
+        }
+
+        Deadline deadline = Deadline.current();
+        Span span = Tracer.current();
+
+        // Only a lazy placeholder goes in under the map lock; the lease round trip runs once it is connected, off this thread
+        AtomicReference<ConnectableFlux<String>> created = new AtomicReference<>();
+        Disposable.Swap connection = Disposables.swap();
+        Flux<String> flight = inFlight.computeIfAbsent(key, k -> {
+            ConnectableFlux<String> connectable = Mono.fromCallable(deadline.wrap(Tracer.wrap(span, () -> start(k, generate))))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(flux -> flux)
+                .doFinally(signal -> {
+                    inFlight.remove(k);
+                    connections.remove(k, connection);
+                })
+                .replay();
+            created.set(connectable);
+            connections.put(k, connection);
+            return connectable;
+        });
+
+        if (created.get() != null) {
+            connection.update(created.get().connect());
+        } else {
+            joined.increment();
+        }
+        return flight;
+    }
+
+    private Flux<String> start(String key, Supplier<Flux<String>> generate) {
+
+        String lease = "lease:" + key;
+        String token = nodeId + ":" + UUID.randomUUID();
+
+        try {
+            if (!shared.tryAcquire(lease, token, leaseTtl)) {
+                followers.increment();
+                return follow(key, lease, generate);
+            }
+        } catch (SharedCacheException e) {
+            sharedFailed("lease " + key, e);
+            return generate.get();
+        }
+
+        leaders.increment();
+        return lead(key, lease, token, generate);
+    }
+
+    // Mirrors every chunk into the progress stream, renewing the lease while chunks keep coming
+    private Flux<String> lead(String key, String lease, String token, Supplier<Flux<String>> generate) {
+
+        Flux<String> generation;
+        try {
+            generation = generate.get();
+        } catch (RuntimeException e) {
+            release(key, lease, token);
+            throw e;
+        }
+
+        ProgressMirror mirror = new ProgressMirror(key, lease, token);
+        mirrors.add(mirror);
+
+        // Took the lease while shutdown was cancelling the flights; the generation will never be subscribed
+        if (closed) {
+            mirror.finish(FAILED);
+        }
+
+        // A flight is only cancelled on shutdown, which followers should hear about as a failure
+        return generation
+            .doOnNext(mirror::offer)
+            .doFinally(signal -> mirror.finish(signal == SignalType.ON_COMPLETE ? DONE : FAILED));
+    }
+
+    private void release(String key, String lease, String token) {
+        try {
+            shared.release(lease, token);
+        } catch (SharedCacheException e) {
+            sharedFailed("release " + key, e);
+        }
+    }
+
+    // Takes over when the leader goes away before sending anything; after that a lost leader fails the stream
+    private Flux<String> follow(String key, String lease, Supplier<Flux<String>> generate) {
+
+        Deadline deadline = Deadline.current();
+        Span span = Tracer.current();
+
+        return Flux.<String>create(sink -> poll(key, lease, sink))
+            .subscribeOn(Schedulers.boundedElastic())
+            .onErrorResume(LeaderLost.class, lost -> {
+                takeovers.increment();
+                log.info("Leader for {} went away; generating on this node", key);
+                return Mono.fromCallable(deadline.wrap(Tracer.wrap(span, () -> takeOver(key, lease, generate))))
+                    .flatMapMany(flux -> flux);
+            });
+    }
+
+    private Flux<String> takeOver(String key, String lease, Supplier<Flux<String>> generate) {
+
+        String token = nodeId + ":" + UUID.randomUUID();
+
+        try {
+            if (shared.tryAcquire(lease, token, leaseTtl)) {
+                return lead(key, lease, token, generate);
+            }
+        } catch (SharedCacheException e) {
+            sharedFailed("lease " + key, e);
+        }
+
+        // Someone else took the lease first; not worth another round of following
+        return generate.get();
+    }
+
+    private void poll(String key, String lease, FluxSink<String> sink) {
+
+        int cursor = 0;
+
+        try {
+
+            Optional<String> holder = shared.holder(lease);
+            if (holder.isEmpty()) {
+                // Finished between our lease attempt and now; the leader's stream is no longer known
+                sink.error(new LeaderLost());
+                return;
+            }
+
+            String progress = progressStream(key, holder.get());
+            long lastProgress = System.currentTimeMillis();
+            boolean leaderGone = false;
+
+            while (!sink.isCancelled()) {
+
+                List<String> chunks = shared.read(progress, cursor);
+
+                for (String chunk : chunks) {
+                    if (DONE.equals(chunk)) {
+                        sink.complete();
+                        return;
+                    }
+                    if (FAILED.equals(chunk)) {
+                        sink.error(cursor == 0
+                            ? new LeaderLost()
+                            : new ResponseStatusException(HttpStatus.BAD_GATEWAY, "Generation failed on another node"));
+                        return;
+                    }
+                    sink.next(chunk);
+                    cursor++;
+                }
+
+                if (!chunks.isEmpty()) {
+                    lastProgress = System.currentTimeMillis();
+                    continue;
+                }
+
+                // Checked after a read that came back empty, so a leader that finished in between is seen next round
+                if (leaderGone) {
+                    break;
+                }
+                leaderGone = !holder.equals(shared.holder(lease))
+                    || System.currentTimeMillis() - lastProgress > stallMillis;
+
+                if (!leaderGone) {
+                    Thread.sleep(pollMillis);
+                }
+            }
+
+        } catch (SharedCacheException e) {
+            sharedFailed("follow " + key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (sink.isCancelled()) {
+            return;
+        }
+
+        sink.error(cursor == 0
+            ? new LeaderLost()
+            : new ResponseStatusException(HttpStatus.BAD_GATEWAY, "Generation on another node stopped midway"));
+    }
+
+    private Optional<GenerationRecord> fetchShared(String key) {
+
+        try {
+
+            Optional<String> json = shared.get("value:" + key);
+            if (json.isEmpty()) {
+                misses.increment();
+                return Optional.empty();
+            }
+
+            GenerationRecord record = objectMapper.readValue(json.get(), GenerationRecord.class);
+            generationStore.cache(record);
+            sharedHits.increment();
+            return Optional.of(record);
+
+        } catch (SharedCacheException e) {
+            sharedFailed("get " + key, e);
+        } catch (JsonProcessingException e) {
+            log.warn("Unreadable shared cache entry for {}", key, e);
+        }
+
+        return Optional.empty();
+    }
+
+    private void publish(GenerationRecord record) {
+        try {
+            shared.put("value:" + record.key(), objectMapper.writeValueAsString(record), valueTtl);
+        } catch (SharedCacheException e) {
+            sharedFailed("put " + record.key(), e);
+        } catch (JsonProcessingException e) {
+            log.warn("Failed to serialize generation {}", record.key(), e);
+        }
+    }
+
+    // Stops the generations still running here, so followers elsewhere take over instead of waiting for a stall
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+
+        closed = true;
+        connections.values().forEach(Disposable::dispose);
+
+        // A flight cancelled before its generation was subscribed never reaches doFinally
+        mirrors.forEach(mirror -> mirror.finish(FAILED));
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_WAIT_MILLIS);
+        List<ProgressMirror> leading;
+        while (!(leading = List.copyOf(mirrors)).isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !leading.get(0).released.await(remaining, TimeUnit.NANOSECONDS)) {
+                log.warn("{} progress streams were not closed before shutdown", leading.size());
+                return;
+            }
+        }
+    }
+
+    // The leader's side of a progress stream: chunks are appended in batches off the leader's stream, and
+    // the lease is released only after the terminal marker is written
+    private final class ProgressMirror {
+
+        private final String key;
+        private final String lease;
+        private final String token;
+        private final String progress;
+
+        private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final AtomicBoolean finishing = new AtomicBoolean();
+        private volatile boolean finished;
+
+        // Only touched by the drain
+        private long renewedAt = System.currentTimeMillis();
+
+        private ProgressMirror(String key, String lease, String token) {
+            this.key = key;
+            this.lease = lease;
+            this.token = token;
+            this.progress = progressStream(key, token);
+        }
+
+        private void offer(String chunk) {
+            pending.add(chunk);
+            schedule();
+        }
+
+        // Only the first marker counts
+        private void finish(String marker) {
+            if (!finishing.compareAndSet(false, true)) {
+                return;
+            }
+            pending.add(marker);
+            finished = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                Schedulers.boundedElastic().schedule(this::drain);
+            }
+        }
+
+        private void drain() {
+
+            int missed = 1;
+            do {
+
+                // Read before polling, so a marker queued before finish() is always in this batch
+                boolean done = finished;
+
+                List<String> batch = new ArrayList<>();
+                String chunk;
+                while ((chunk = pending.poll()) != null) {
+                    batch.add(chunk);
+                }
+
+                boolean open = released.getCount() > 0;
+
+                if (!batch.isEmpty() && open) {
+                    try {
+                        shared.append(progress, batch, progressTtl);
+                    } catch (SharedCacheException e) {
+                        sharedFailed("append " + progress, e);
+                    }
+                }
+
+                if (done && open) {
+                    release(key, lease, token);
+                    mirrors.remove(this);
+                    released.countDown();
+                } else if (open) {
+                    renewIfDue();
+                }
+
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void renewIfDue() {
+
+            long now = System.currentTimeMillis();
+            if (now - renewedAt < leaseTtl.toMillis() / 3) {
+                return;
+            }
+
+            renewedAt = now;
+            try {
+                shared.renew(lease, token, leaseTtl);
+            } catch (SharedCacheException e) {
+                sharedFailed("renew " + lease, e);
+            }
+        }
+    }
+
+    private void sharedFailed(String operation, SharedCacheException e) {
+        sharedErrors.increment();
+        log.debug("Shared generation cache {} failed", operation, e);
+    }
+
+    private static String progressStream(String key, String token) {
+        return "progress:" + key + ":" + token;
+    }
+
+    // Control flow only: the follower found no leader to follow and nothing was emitted yet
+    private static final class LeaderLost extends RuntimeException {
+        private LeaderLost() {
+            super(null, null, false, false);
+        }
+    }
+}
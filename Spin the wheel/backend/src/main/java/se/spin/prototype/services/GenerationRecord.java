@@ -0,0 +1,16 @@
+package se.spin.prototype.services;
+
+// One finished generation as persisted by GenerationStore; token counts are estimates
+public record GenerationRecord(String kind,
+                               String key,
+                               String seedLink,
+                               String text,
+                               String model,
+                               long latencyMs,
+                               int promptTokens,
+                               int completionTokens,
+                               long createdAt) {
+
+    public static final String STORY = "story";
+    public static final String COMPARISON = "comparison";
+}
@@ -0,0 +1,441 @@
+package se.spin.prototype.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import se.spin.prototype.util.CompressedTextStore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Write-behind persistence of finished generations, to Firestore or a rotated local NDJSON log
+@Component
+public class GenerationStore {
+
+    private static final Logger log = LoggerFactory.getLogger(GenerationStore.class);
+
+    private final FirestoreService firestoreService;
+    private final ObjectMapper objectMapper;
+
+    private final BlockingQueue<GenerationRecord> queue;
+    private final boolean dropOldest;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final Path logPath;
+    private final Path rotatedLogPath;
+    private final long logMaxBytes;
+    private final int maxRetries;
+    private final int warmupLimit;
+
+    // Most recent generation per key, compressed off-heap; warmed from the persisted corpus at startup
+    private final CompressedTextStore latest;
+    // Recorded but not yet compressed by the flusher, so lookups see their own writes
+    private final Map<String, GenerationRecord> pending = new ConcurrentHashMap<>();
+
+    private final Counter queued;
+    private final Counter dropped;
+    private final Counter flushed;
+    private final Counter flushFailures;
+    private final Counter abandoned;
+
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public GenerationStore(FirestoreService firestoreService,
+                           ObjectMapper objectMapper,
+                           MeterRegistry meterRegistry,
+                           @Value("${spin.persistence.queue-capacity:1000}") int queueCapacity,
+                           @Value("${spin.persistence.drop-policy:drop-oldest}") String dropPolicy,
+                           @Value("${spin.persistence.batch-size:50}") int batchSize,
+                           @Value("${spin.persistence.flush-interval-ms:2000}") long flushIntervalMillis,
+                           @Value("${spin.persistence.log-path:data/generations.ndjson}") String logPath,
+                           @Value("${spin.persistence.log-max-mb:64}") long logMaxMegabytes,
+                           @Value("${spin.persistence.max-retries:5}") int maxRetries,
+                           @Value("${spin.persistence.text-store.max-mb:64}") long textStoreMegabytes,
+                           @Value("${spin.persistence.text-store.segment-kb:1024}") int segmentKilobytes,
+                           @Value("${spin.persistence.text-store.train-after:64}") int trainAfter,
+                           @Value("${spin.persistence.warmup-limit:2000}") int warmupLimit) {
+
+        this.firestoreService = firestoreService;
+        this.objectMapper = objectMapper;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.dropOldest = "drop-oldest".equals(dropPolicy);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.logPath = Path.of(logPath);
+        this.rotatedLogPath = Path.of(logPath + ".1");
+        this.logMaxBytes = logMaxMegabytes * 1024 * 1024;
+        this.maxRetries = maxRetries;
+        this.warmupLimit = warmupLimit;
+        this.latest = new CompressedTextStore(textStoreMegabytes * 1024 * 1024, segmentKilobytes * 1024, trainAfter);
+
+        this.queued = meterRegistry.counter("spin.persistence.records", "result", "queued");
+        this.dropped = meterRegistry.counter("spin.persistence.records", "result", "dropped");
+        this.flushed = meterRegistry.counter("spin.persistence.records", "result", "flushed");
+        this.flushFailures = meterRegistry.counter("spin.persistence.flush.failures");
+        this.abandoned = meterRegistry.counter("spin.persistence.records", "result", "abandoned");
+        meterRegistry.gauge("spin.persistence.queue.size", queue, BlockingQueue::size);
+        meterRegistry.gauge("spin.textstore.entries", latest, store -> store.stats().entries());
+        meterRegistry.gauge("spin.textstore.offheap.bytes", latest, store -> store.stats().offHeapBytes());
+        meterRegistry.gauge("spin.textstore.index.bytes", latest, store -> store.stats().indexBytes());
+        meterRegistry.gauge("spin.textstore.text.bytes", latest, store -> store.stats().textBytes());
+        meterRegistry.gauge("spin.textstore.compressed.bytes", latest, store -> store.stats().compressedBytes());
+        meterRegistry.gauge("spin.textstore.compression.ratio", latest, store -> store.stats().compressionRatio());
+        meterRegistry.gauge("spin.textstore.evictions", latest, store -> store.stats().evictions());
+
+        this.flusher = new Thread(this::flushLoop, "generation-store-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public void record(GenerationRecord record) {
+
+        if (record.key() != null && record.text() != null) {
+            pending.put(record.key(), record);
+        }
+
+        if (queue.offer(record)) {
+            queued.increment();
+            return;
+        }
+
+        // Queue full: drop-oldest makes room for the new record, drop-newest discards it
+        if (dropOldest) {
+            GenerationRecord oldest = queue.poll();
+            if (oldest != null) {
+                unpend(oldest);
+            }
+            if (oldest != null && queue.offer(record)) {
+                queued.increment();
+                dropped.increment();
+                return;
+            }
+        }
+
+        unpend(record);
+        dropped.increment();
+    }
+
+    public Optional<GenerationRecord> findLatest(String key) {
+        GenerationRecord waiting = pending.get(key);
+        return waiting != null ? Optional.of(waiting) : latest.get(key).map(entry -> decode(key, entry));
+    }
+
+    public boolean contains(String key) {
+        return pending.containsKey(key) || latest.contains(key);
+    }
+
+    // The cached text in chunks, each inflated when the subscriber requests it; empty when not cached
+    public Flux<String> streamText(String key) {
+        return Flux.defer(() -> {
+
+            GenerationRecord waiting = pending.get(key);
+            if (waiting != null) {
+                return Flux.just(waiting.text());
+            }
+
+            CompressedTextStore.TextReader reader = latest.openText(key);
+            if (reader == null) {
+                return Flux.empty();
+            }
+
+            return Flux.<String, CompressedTextStore.TextReader>generate(() -> reader, (state, sink) -> {
+                if (!state.read((chars, offset, length) -> sink.next(new String(chars, offset, length)))) {
+                    sink.complete();
+                }
+                return state;
+            }, CompressedTextStore.TextReader::close);
+        });
+    }
+
+    private void unpend(GenerationRecord record) {
+        if (record.key() != null) {
+            pending.remove(record.key(), record);
+        }
+    }
+
+    // Near-cache only, for records that were persisted elsewhere
+    void cache(GenerationRecord record) {
+        if (record.key() != null && record.text() != null && !latest.put(record.key(), encodeMeta(record), record.text())) {
+            log.debug("Generation {} is too large for the text store", record.key());
+        }
+    }
+
+    // Everything but key and text, which the store keeps itself
+    private static byte[] encodeMeta(GenerationRecord record) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(record.kind() != null ? record.kind() : "");
+            out.writeBoolean(record.seedLink() != null);
+            if (record.seedLink() != null) {
+                out.writeUTF(record.seedLink());
+            }
+            out.writeUTF(record.model() != null ? record.model() : "");
+            out.writeLong(record.latencyMs());
+            out.writeInt(record.promptTokens());
+            out.writeInt(record.completionTokens());
+            out.writeLong(record.createdAt());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static GenerationRecord decode(String key, CompressedTextStore.Entry entry) {
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.meta()))) {
+            String kind = in.readUTF();
+            String seedLink = in.readBoolean() ? in.readUTF() : null;
+            String model = in.readUTF();
+            return new GenerationRecord(kind, key, seedLink, entry.text(), model,
+                in.readLong(), in.readInt(), in.readInt(), in.readLong());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Firestore initializes in the background, so the warm-up must not hold up the ready event
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpInBackground() {
+        Thread thread = new Thread(this::warmUp, "generation-store-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void warmUp() {
+
+        try {
+
+            List<GenerationRecord> records = firestoreService.isEnabled()
+                ? firestoreService.fetchRecentGenerations(warmupLimit)
+                : readLogTail();
+
+            // Oldest first so the newest record per key wins
+            for (int i = records.size() - 1; i >= 0; i--) {
+                cache(records.get(i));
+            }
+
+            log.info("Warmed generation cache with {} persisted records", records.size());
+
+        } catch (RuntimeException e) {
+            log.warn("Failed to warm generation cache from persisted corpus", e);
+        }
+    }
+
+    private void flushLoop() {
+
+        List<GenerationRecord> batch = new ArrayList<>(batchSize);
+        int attempts = 0;
+
+        while (running || !queue.isEmpty() || !batch.isEmpty()) {
+
+            try {
+
+                if (batch.isEmpty()) {
+                    GenerationRecord first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    compress(batch);
+                } else {
+                    // A failed batch waits one interval before it is tried again
+                    Thread.sleep(flushIntervalMillis);
+                }
+
+                if (flush(batch)) {
+                    batch.clear();
+                    attempts = 0;
+                } else if (++attempts > maxRetries) {
+                    log.warn("Giving up on {} generations after {} attempts", batch.size(), attempts);
+                    abandoned.increment(batch.size());
+                    batch.clear();
+                    attempts = 0;
+                }
+
+            } catch (InterruptedException e) {
+                if (!running) {
+                    List<GenerationRecord> rest = new ArrayList<>();
+                    queue.drainTo(rest);
+                    compress(rest);
+                    batch.addAll(rest);
+                    if (!batch.isEmpty() && !flush(batch)) {
+                        abandoned.increment(batch.size());
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    // Compression happens here rather than in record(), so request threads never pay for it
+    private void compress(List<GenerationRecord> batch) {
+        for (GenerationRecord record : batch) {
+            cache(record);
+            unpend(record);
+        }
+    }
+
+    private boolean flush(List<GenerationRecord> batch) {
+
+        try {
+
+            if (firestoreService.isEnabled()) {
+                firestoreService.saveGenerations(batch);
+            } else {
+                appendToLog(batch);
+            }
+
+            flushed.increment(batch.size());
+            return true;
+
+        } catch (IOException | RuntimeException e) {
+            flushFailures.increment();
+            log.warn("Failed to persist {} generations", batch.size(), e);
+            return false;
+        }
+    }
+
+    private void appendToLog(List<GenerationRecord> batch) throws IOException {
+
+        Path parent = logPath.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        // Keeps one previous log, so the corpus on disk stays bounded to twice the limit
+        if (Files.exists(logPath) && Files.size(logPath) >= logMaxBytes) {
+            Files.move(logPath, rotatedLogPath, StandardCopyOption.REPLACE_EXISTING);
+            log.info("Rotated generation log to {}", rotatedLogPath);
+        }
+
+        StringBuilder lines = new StringBuilder();
+        for (GenerationRecord record : batch) {
+            lines.append(objectMapper.writeValueAsString(record)).append('\n');
+        }
+
+        // One write per batch, so a retried batch is never half in the log
+        try (BufferedWriter writer = Files.newBufferedWriter(logPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(lines.toString());
+        }
+    }
+
+    // Newest first, to match the Firestore query order
+    private List<GenerationRecord> readLogTail() {
+
+        List<GenerationRecord> records = readTail(logPath, warmupLimit);
+        if (records.size() < warmupLimit) {
+            List<GenerationRecord> older = readTail(rotatedLogPath, warmupLimit - records.size());
+            older.addAll(records);
+            records = older;
+        }
+
+        Collections.reverse(records);
+        return records;
+    }
+
+    // The last records of one log, oldest first; reads backwards from the end instead of the whole file
+    private List<GenerationRecord> readTail(Path path, int limit) {
+
+        List<GenerationRecord> records = new ArrayList<>();
+        if (limit <= 0 || !Files.exists(path)) {
+            return records;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel.position(tailOffset(channel, limit)), StandardCharsets.UTF_8));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+
+                if (line.isBlank())
+                    continue;
+
+                try {
+                    records.add(objectMapper.readValue(line, GenerationRecord.class));
+                } catch (IOException e) {
+                    log.warn("Skipping unreadable line in {}", path);
+                }
+            }
+
+        } catch (IOException e) {
+            log.warn("Failed to read generation log {}", path, e);
+        }
+
+        int from = Math.max(0, records.size() - limit);
+        return new ArrayList<>(records.subList(from, records.size()));
+    }
+
+    // Start of the last `lines` lines, found by scanning back for newlines in blocks
+    private static long tailOffset(FileChannel channel, int lines) throws IOException {
+
+        ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+        long position = channel.size();
+        int newlines = 0;
+
+        while (position > 0) {
+
+            int length = (int) Math.min(block.capacity(), position);
+            position -= length;
+
+            block.clear().limit(length);
+            while (block.hasRemaining()) {
+                if (channel.read(block, position + block.position()) < 0)
+                    break;
+            }
+
+            // The log ends with a newline, so one more than `lines` marks where the tail starts
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) == '\n' && ++newlines > lines) {
+                    return position + i + 1;
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        flusher.interrupt();
+        flusher.join(TimeUnit.SECONDS.toMillis(10));
+    }
+}
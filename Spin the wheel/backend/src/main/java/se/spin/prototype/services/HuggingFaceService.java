@@ -4,26 +4,56 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.http.ReactiveHttpOutputMessage;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.reactive.function.BodyInserter;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import se.spin.prototype.Beans.GenderEnum;
+import se.spin.prototype.Beans.SeedResult;
 import se.spin.prototype.Beans.SpinArguments;
+import se.spin.prototype.profiling.SpinEvents;
+import se.spin.prototype.replay.SseRecording;
+import se.spin.prototype.tracing.Span;
+import se.spin.prototype.tracing.Tracer;
+import se.spin.prototype.util.Deadline;
+import se.spin.prototype.util.DeadlineRequestFactory;
 import se.spin.prototype.util.EnvUtil;
+import se.spin.prototype.util.GenerationKeys;
+import se.spin.prototype.util.SpinKey;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
 
 import org.springframework.web.util.UriComponentsBuilder;
 
@@ -31,156 +61,273 @@ import org.springframework.web.util.UriComponentsBuilder;
 public class HuggingFaceService {
 
     private static final Logger log = LoggerFactory.getLogger(HuggingFaceService.class);
-
-    private final RestTemplate restTemplate = new RestTemplate();
+    private static final String MODEL = "AI-Sweden-Models/Llama-3-8B-instruct:featherless-ai";
+    private static final int MAX_TOKENS = 256;
+    private static final int MIN_TOKENS = 32;
+    private static final String COMPLETIONS_URL = "https://router.huggingface.co/v1/chat/completions";
+    private static final String MODELS_URL = "https://router.huggingface.co/v1/models";
+    private static final String COMPLETIONS_HOST = URI.create(COMPLETIONS_URL).getHost();
+
+    // Request attribute carrying the spin a streaming request belongs to, for the profiling filter
+    private static final String SPIN_ATTRIBUTE = HuggingFaceService.class.getName() + ".spin";
+
+    // Synthetic inputs for exerciseCodePaths
+    private static final SpinKey WARMUP_KEY = new SpinKey("Stockholm", 1900, GenderEnum.FEMALE);
+    private static final String WARMUP_TEXT = "Born in 1900 in Stockholm, she trained as a teacher and later ran an evening school for working women.";
+    private static final String WARMUP_STREAM_CHUNK = "data: {\"choices\":[{\"delta\":{\"content\":\"Det var en gång\"}}]}";
+    private static final String WARMUP_COMPLETION = "{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"" + WARMUP_TEXT + "\"}}]}";
+
+    private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper = new ObjectMapper();
-    private final WebClient webClient = WebClient.builder().build();
+    private final WebClient webClient;
+    private final ChatCompletionWriter chatCompletionWriter = new ChatCompletionWriter(MODEL, 0.7, 0.9);
+
+    // Built once; the token is read from the environment at startup instead of on every call
+    private final HttpHeaders completionHeaders;
+    private final HttpHeaders streamHeaders;
+    private final SeedIndexService seedIndexService;
+    private final GenerationCache generationCache;
+
+    private final int streamRetries;
+    private final long streamRetryBackoffMillis;
+    private final long streamRetryMaxAddedMillis;
+
+    // Used to size max_tokens to what the remaining request budget can still afford
+    private final int tokensPerSecond;
+    private final long firstTokenMillis;
+
+    public HuggingFaceService(SeedIndexService seedIndexService,
+                              GenerationCache generationCache,
+                              @Value("${spin.stream.retry.max-attempts:2}") int streamRetries,
+                              @Value("${spin.stream.retry.backoff-ms:250}") long streamRetryBackoffMillis,
+                              @Value("${spin.stream.retry.max-added-latency-ms:4000}") long streamRetryMaxAddedMillis,
+                              @Value("${spin.upstream.connect-timeout-ms:5000}") int connectTimeoutMillis,
+                              @Value("${spin.upstream.read-timeout-ms:60000}") int readTimeoutMillis,
+                              @Value("${spin.deadline.tokens-per-second:25}") int tokensPerSecond,
+                              @Value("${spin.deadline.first-token-ms:1500}") long firstTokenMillis,
+                              ObjectProvider<ExchangeFilterFunction> upstreamFilters) {
+        // Recording or replay of upstream streams plugs in here, inside the connect timing
+        this.webClient = WebClient.builder()
+            .filter(HuggingFaceService::recordConnect)
+            .filters(filters -> upstreamFilters.orderedStream().forEach(filters::add))
+            .build();
+        this.restTemplate = new RestTemplate(new DeadlineRequestFactory(connectTimeoutMillis, readTimeoutMillis));
+        this.completionHeaders = buildHeaders(List.of(MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN));
+        this.streamHeaders = buildHeaders(List.of(MediaType.TEXT_EVENT_STREAM, MediaType.ALL));
+        this.tokensPerSecond = tokensPerSecond;
+        this.firstTokenMillis = firstTokenMillis;
+        this.seedIndexService = seedIndexService;
+        this.generationCache = generationCache;
+        this.streamRetries = streamRetries;
+        this.streamRetryBackoffMillis = streamRetryBackoffMillis;
+        this.streamRetryMaxAddedMillis = streamRetryMaxAddedMillis;
+    }
+
+    private static HttpHeaders buildHeaders(List<MediaType> accept) {
 
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.setAccept(accept);
+        headers.setBearerAuth(EnvUtil.get("HUGGINGFACE_API_TOKEN"));
+        headers.add("X-Router-Provider", "nscale");
+
+        return HttpHeaders.readOnlyHttpHeaders(headers);
+    }
 
-    private String buildStoryPrompt(SpinArguments arguments, String seedText) {
+    private String buildStoryPrompt(SpinArguments arguments, String seedText, List<SeedResult> relatedSeeds) {
 
         StringBuilder sb = new StringBuilder();
 
         sb.append("Write a short, realistic story set in ").append(arguments.getCity())
             .append(" around year ").append(arguments.getYear())
             .append(" about a ").append(arguments.getGender().getDescription())
-            .append("\n\nContext: ").append(seedText)
-            .append("\n\nReturn only the story text.");
+            .append("\n\nContext: ").append(seedText);
+
+        if (!relatedSeeds.isEmpty()) {
+            sb.append("\n\nRelated biographies:");
+            for (SeedResult related : relatedSeeds) {
+                sb.append("\n- ").append(related.getText());
+            }
+        }
+
+        sb.append("\n\nReturn only the story text.");
 
         return sb.toString();
     }
 
+    private String storyPrompt(SpinArguments arguments, SeedResult seed) {
+
+        SpinEvents.PromptBuild event = new SpinEvents.PromptBuild();
+        event.begin();
+        Span span = Tracer.start("prompt.build");
+
+        List<SeedResult> related = seedIndexService.findRelated(arguments, seed.getText());
+        String prompt = buildStoryPrompt(arguments, seed.getText(), related);
+
+        event.spin(arguments);
+        event.outcome = "built";
+        event.relatedSeeds = related.size();
+        event.promptTokens = estimateTokens(prompt);
+        event.commit();
+
+        span.attribute("prompt.related_seeds", related.size())
+            .attribute("prompt.tokens", event.promptTokens)
+            .end();
+
+        return prompt;
+    }
+
+    // Stories are labelled by their spin, not their position, since (A, B) and (B, A) share one cached comparison
     private String buildComparePrompt(SpinArguments firstArgs, SpinArguments secondArgs, String firstStory, String secondStory) {
 
         return "Compare the two historical stories below. Highlight key differences in setting, tone, and perspective. Be concise (max 6 sentences). " +
-            "Story 1 (" + firstArgs.getCity() + ", " + firstArgs.getYear() + ", " + firstArgs.getGender().getDescription() + "):\n" + firstStory + "\n\n" +
-            "Story 2 (" + secondArgs.getCity() + ", " + secondArgs.getYear() + ", " + secondArgs.getGender().getDescription() + "):\n" + secondStory;
+            "Refer to each story by its place and year, never as the first or second story. " +
+            "Story from " + firstArgs.getCity() + ", " + firstArgs.getYear() + " (" + firstArgs.getGender().getDescription() + "):\n" + firstStory + "\n\n" +
+            "Story from " + secondArgs.getCity() + ", " + secondArgs.getYear() + " (" + secondArgs.getGender().getDescription() + "):\n" + secondStory;
 
     }
 
-    public String generateStory(SpinArguments arguments, String seedText) {
+    public String generateStory(SpinArguments arguments, SeedResult seed) {
 
-        String prompt = buildStoryPrompt(arguments, seedText);
+        long startedAt = System.currentTimeMillis();
+        String prompt = storyPrompt(arguments, seed);
 
-        Map<String, Object> userMessage = new HashMap<>();
-        userMessage.put("role", "user");
-        userMessage.put("content", prompt);
+        String result = sendChatCompletion(prompt, MAX_TOKENS, "story generation", arguments);
+        recordGeneration(GenerationRecord.STORY, GenerationKeys.story(arguments), seed.getLink(), prompt, result, startedAt);
 
-        Map<String, Object> payload = new HashMap<>();
-        payload.put("model", "AI-Sweden-Models/Llama-3-8B-instruct:featherless-ai");
-        payload.put("messages", List.of(userMessage));
-        payload.put("max_tokens", 256);
-        payload.put("temperature", 0.7);
-        payload.put("top_p", 0.9);
-        payload.put("stream", false);
+        return result;
+    }
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.setAccept(List.of(MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN));
-        headers.setBearerAuth(EnvUtil.get("HUGGINGFACE_API_TOKEN"));
-        headers.add("X-Router-Provider", "nscale");
-        
-        try {
+    public Flux<String> streamStory(SpinArguments arguments, SeedResult seed) {
 
-            ResponseEntity<String> response = restTemplate.exchange(
-                "https://router.huggingface.co/v1/chat/completions",
-                HttpMethod.POST, 
-                new HttpEntity<>(payload, headers), 
-                String.class
-            );
+        long startedAt = System.currentTimeMillis();
+        String prompt = storyPrompt(arguments, seed);
+        StringBuilder text = new StringBuilder();
 
-            if (!response.getStatusCode().is2xxSuccessful() || response.getBody() == null) {
-                log.error("HuggingFace call failed: status {} body {}", response.getStatusCode(), response.getBody());
-                throw new ResponseStatusException(response.getStatusCode(), "HuggingFace generation failed");
-            }
-            
-            String result = extractText(response.getBody());
+        return streamCompletion(prompt, "story", arguments)
+            .doOnNext(text::append)
+            .doOnComplete(() -> recordGeneration(GenerationRecord.STORY, GenerationKeys.story(arguments), seed.getLink(), prompt, text.toString(), startedAt));
+    }
 
-            return result;
+    public String compareStories(SpinArguments firstArgs, SpinArguments secondArgs, String firstStory, String secondStory) {
 
-        } catch (org.springframework.web.client.HttpStatusCodeException ex) {
+        long startedAt = System.currentTimeMillis();
+        String prompt = buildComparePrompt(firstArgs, secondArgs, firstStory, secondStory);
 
-            String body = ex.getResponseBodyAsString();
-            log.error("HuggingFace text error: status {} body {}", ex.getStatusCode(), body);
-            throw new ResponseStatusException(ex.getStatusCode(), "HuggingFace text error: " + body);
+        String result = sendChatCompletion(prompt, MAX_TOKENS, "text generation", firstArgs);
+        recordGeneration(GenerationRecord.COMPARISON, GenerationKeys.comparison(firstArgs, firstStory, secondArgs, secondStory), null, prompt, result, startedAt);
 
-        }
+        return result;
     }
 
-    public Flux<String> streamStory(SpinArguments arguments, String seedText) {
+    public Flux<String> streamCompareStories(SpinArguments firstArgs, SpinArguments secondArgs, String firstStory, String secondStory) {
 
-        String prompt = buildStoryPrompt(arguments, seedText);
+        long startedAt = System.currentTimeMillis();
+        String prompt = buildComparePrompt(firstArgs, secondArgs, firstStory, secondStory);
+        StringBuilder text = new StringBuilder();
 
-        Map<String, Object> userMessage = new HashMap<>();
-        userMessage.put("role", "user");
-        userMessage.put("content", prompt);
+        return streamCompletion(prompt, "compare", firstArgs)
+            .doOnNext(text::append)
+            .doOnComplete(() -> recordGeneration(GenerationRecord.COMPARISON, GenerationKeys.comparison(firstArgs, firstStory, secondArgs, secondStory), null, prompt, text.toString(), startedAt));
+    }
 
-        Map<String, Object> payload = new HashMap<>();
-        payload.put("model", "AI-Sweden-Models/Llama-3-8B-instruct:featherless-ai");
-        payload.put("messages", List.of(userMessage));
-        payload.put("max_tokens", 256);
-        payload.put("temperature", 0.7);
-        payload.put("top_p", 0.9);
-        payload.put("stream", true);
+    // subject is the spin the completion is for, used to label profiling events
+    private Flux<String> streamCompletion(String prompt, String label, SpinArguments subject) {
 
-        return webClient.post()
-            .uri("https://router.huggingface.co/v1/chat/completions")
-            .headers(h -> {
-                h.setContentType(MediaType.APPLICATION_JSON);
-                h.setAccept(List.of(MediaType.TEXT_EVENT_STREAM, MediaType.ALL));
-                h.setBearerAuth(EnvUtil.get("HUGGINGFACE_API_TOKEN"));
-                h.add("X-Router-Provider", "nscale");
-            })
-            .bodyValue(payload)
-            .retrieve()
-            .bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<String>>() {})
-            .flatMap(sse -> {
-                String data = sse.data();
-                if (data == null || data.isBlank()) return Flux.empty();
-                return Flux.fromIterable(extractStreamDelta(data));
+        // Captured here, on the request thread; the stream itself runs on reactor threads
+        Span span = Tracer.start("huggingface.stream")
+            .attribute("completion.kind", label)
+            .attribute("prompt.tokens", estimateTokens(prompt));
+        StreamState state = new StreamState(Deadline.current(), subject, span);
+
+        Flux<String> stream = Flux.defer(() -> streamAttempt(prompt, label, state));
+        if (state.deadline.isBounded()) {
+            // Re-armed with what is left of the budget after every token, so a slow trickle is cut off at the deadline too
+            stream = stream.timeout(Mono.delay(Duration.ofMillis(state.deadline.remainingMillis())),
+                delta -> Mono.delay(Duration.ofMillis(state.deadline.remainingMillis())));
+        }
+
+        SpinEvents.Completion event = new SpinEvents.Completion();
+
+        return stream
+            .doOnSubscribe(subscription -> event.begin())
+            .doFinally(signal -> {
+                event.spin(subject);
+                event.kind = label;
+                event.streamed = true;
+                event.outcome = outcome(signal);
+                event.retries = state.retries;
+                if (event.isEnabled()) {
+                    event.promptTokens = estimateTokens(prompt);
+                    event.completionTokens = estimateTokens(state.received);
+                }
+                event.commit();
+
+                span.attribute("completion.tokens", estimateTokens(state.received))
+                    .attribute("completion.retries", state.retries)
+                    .attribute("completion.outcome", event.outcome);
+                if (signal == SignalType.ON_COMPLETE) {
+                    span.event("last_token", Map.of("chars", state.received.length()));
+                }
+                span.end();
             })
+            .doOnError(span::error)
             .onErrorResume(ex -> {
-                log.error("HuggingFace streaming error", ex);
-                return Flux.error(new ResponseStatusException(org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR, "HuggingFace streaming failed", ex));
+                if (ex instanceof TimeoutException || state.deadline.isExpired()) {
+                    log.warn("HuggingFace streaming {} ran out of request budget after {} chars", label, state.received.length());
+                    return Flux.error(state.deadline.expired("streaming " + label));
+                }
+                if (ex instanceof ResponseStatusException) {
+                    return Flux.error(ex);
+                }
+                log.error("HuggingFace streaming {} error after {} retries", label, state.retries, ex);
+                return Flux.error(new ResponseStatusException(org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR, "HuggingFace streaming " + label + " failed", ex));
             });
     }
 
-    public String compareStories(SpinArguments firstArgs, SpinArguments secondArgs, String firstStory, String secondStory) {
-
-        String prompt = buildComparePrompt(firstArgs, secondArgs, firstStory, secondStory);
+    // One upstream request. After a failure the next attempt re-sends the text received so far
+    // as an assistant prefix, so only the continuation reaches the caller.
+    private Flux<String> streamAttempt(String prompt, String label, StreamState state) {
 
-        Map<String, Object> userMessage = new HashMap<>();
-        userMessage.put("role", "user");
-        userMessage.put("content", prompt);
+        List<ChatCompletionRequest.Message> messages = new ArrayList<>(2);
+        messages.add(ChatCompletionRequest.Message.user(prompt));
 
-        return sendChatCompletion(userMessage, 256);
-    }
+        int maxTokens = MAX_TOKENS;
+        if (state.received.length() > 0) {
+            String partial = state.received.toString();
+            messages.add(ChatCompletionRequest.Message.assistant(partial));
 
-    public Flux<String> streamCompareStories(SpinArguments firstArgs, SpinArguments secondArgs, String firstStory, String secondStory) {
+            // Attempts share one MAX_TOKENS budget; a stream that broke after spending it is complete
+            maxTokens = MAX_TOKENS - estimateTokens(partial);
+            if (maxTokens <= 0) {
+                return Flux.empty();
+            }
+        }
+        maxTokens = affordableTokens(maxTokens, state.deadline, "streaming " + label);
 
-        String prompt = buildComparePrompt(firstArgs, secondArgs, firstStory, secondStory);
+        ChatCompletionRequest request = new ChatCompletionRequest(List.copyOf(messages), maxTokens, true);
 
-        Map<String, Object> userMessage = new HashMap<>();
-        userMessage.put("role", "user");
-        userMessage.put("content", prompt);
+        SpinEvents.FirstToken firstToken = new SpinEvents.FirstToken();
+        firstToken.spin(state.subject);
+        firstToken.stream = label;
+        firstToken.attempt = state.retries + 1;
+        firstToken.maxTokens = maxTokens;
 
-        Map<String, Object> payload = new HashMap<>();
-        payload.put("model", "AI-Sweden-Models/Llama-3-8B-instruct:featherless-ai");
-        payload.put("messages", List.of(userMessage));
-        payload.put("max_tokens", 256);
-        payload.put("temperature", 0.7);
-        payload.put("top_p", 0.9);
-        payload.put("stream", true);
+        // Serialized straight into a buffer from the connection's allocator
+        BodyInserter<DataBuffer, ReactiveHttpOutputMessage> body = (message, context) ->
+            message.writeWith(Mono.fromSupplier(() -> chatCompletionWriter.write(request, message.bufferFactory())));
 
         return webClient.post()
-            .uri("https://router.huggingface.co/v1/chat/completions")
+            .uri(COMPLETIONS_URL)
             .headers(h -> {
-                h.setContentType(MediaType.APPLICATION_JSON);
-                h.setAccept(List.of(MediaType.TEXT_EVENT_STREAM, MediaType.ALL));
-                h.setBearerAuth(EnvUtil.get("HUGGINGFACE_API_TOKEN"));
-                h.add("X-Router-Provider", "nscale");
+                h.addAll(streamHeaders);
+                h.set(Tracer.TRACEPARENT, state.span.traceparent());
             })
-            .bodyValue(payload)
+            .attributes(attributes -> {
+                attributes.put(SPIN_ATTRIBUTE, state.subject);
+                attributes.put(SseRecording.STREAM_ATTRIBUTE, label);
+            })
+            .body(body)
             .retrieve()
             .bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<String>>() {})
             .flatMap(sse -> {
@@ -188,35 +335,131 @@ public class HuggingFaceService {
                 if (data == null || data.isBlank()) return Flux.empty();
                 return Flux.fromIterable(extractStreamDelta(data));
             })
+            .doOnSubscribe(subscription -> firstToken.begin())
+            .doOnNext(delta -> {
+                if (firstToken.outcome == null) {
+                    firstToken.outcome = "received";
+                    firstToken.commit();
+                    if (state.received.length() == 0) {
+                        state.span.event("first_token", Map.of("attempt", firstToken.attempt));
+                    }
+                }
+                state.received.append(delta);
+            })
+            .doFinally(signal -> {
+                // The attempt ended without producing a token
+                if (firstToken.outcome == null) {
+                    firstToken.outcome = outcome(signal);
+                    firstToken.commit();
+                }
+            })
             .onErrorResume(ex -> {
-                log.error("HuggingFace streaming compare error", ex);
-                return Flux.error(new ResponseStatusException(org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR, "HuggingFace streaming compare failed", ex));
+
+                long now = System.currentTimeMillis();
+                if (state.firstFailureAt == 0) {
+                    state.firstFailureAt = now;
+                }
+
+                long addedLatency = now - state.firstFailureAt;
+                long retryWindow = Math.min(streamRetryMaxAddedMillis - addedLatency, state.deadline.remainingMillis() - firstTokenMillis);
+                if (!isRetryable(ex) || state.retries >= streamRetries || retryWindow <= 0) {
+                    return Flux.error(ex);
+                }
+
+                state.retries++;
+
+                // Exponential backoff with full jitter, kept inside the added-latency cap and the request budget
+                long ceiling = Math.min(streamRetryBackoffMillis << (state.retries - 1), retryWindow);
+                long backoff = ThreadLocalRandom.current().nextLong(ceiling + 1);
+
+                log.warn("HuggingFace streaming {} broke after {} chars; retry {} in {} ms",
+                    label, state.received.length(), state.retries, backoff, ex);
+                state.span.event("retry", Map.of("attempt", state.retries + 1, "backoff_ms", backoff, "chars", state.received.length()));
+
+                return Mono.delay(Duration.ofMillis(backoff))
+                    .thenMany(Flux.defer(() -> streamAttempt(prompt, label, state)));
             });
     }
 
-    private String sendChatCompletion(Map<String, Object> userMessage, int maxTokens) {
+    // Times each streaming request until its response headers arrive
+    private static Mono<ClientResponse> recordConnect(ClientRequest request, ExchangeFunction next) {
 
-        Map<String, Object> payload = new HashMap<>();
-        payload.put("model", "AI-Sweden-Models/Llama-3-8B-instruct:featherless-ai");
-        payload.put("messages", List.of(userMessage));
-        payload.put("max_tokens", maxTokens);
-        payload.put("temperature", 0.7);
-        payload.put("top_p", 0.9);
-        payload.put("stream", false);
+        return Mono.defer(() -> {
 
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.setAccept(List.of(MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN));
-        headers.setBearerAuth(EnvUtil.get("HUGGINGFACE_API_TOKEN"));
-        headers.add("X-Router-Provider", "nscale");
-        
-        try {
+            SpinEvents.UpstreamConnect event = new SpinEvents.UpstreamConnect();
+            event.begin();
+            request.attribute(SPIN_ATTRIBUTE).ifPresent(subject -> event.spin((SpinArguments) subject));
+            event.host = request.url().getHost();
+            event.outcome = "failed";
+
+            return next.exchange(request)
+                .doOnNext(response -> {
+                    event.status = response.statusCode().value();
+                    event.outcome = response.statusCode().is2xxSuccessful() ? "connected" : "rejected";
+                })
+                .doFinally(signal -> event.commit());
+        });
+    }
+
+    private static String outcome(SignalType signal) {
+        return switch (signal) {
+            case ON_COMPLETE -> "completed";
+            case CANCEL -> "cancelled";
+            default -> "failed";
+        };
+    }
+
+    private static boolean isRetryable(Throwable ex) {
 
-            ResponseEntity<String> response = restTemplate.exchange(
-                "https://router.huggingface.co/v1/chat/completions",
-                HttpMethod.POST, 
-                new HttpEntity<>(payload, headers), 
-                String.class
+        if (ex instanceof WebClientResponseException responseException) {
+            int status = responseException.getStatusCode().value();
+            return status == 429 || status >= 500;
+        }
+
+        // Connection resets, premature closes and other transport failures
+        return ex instanceof WebClientRequestException || ex instanceof IOException || ex.getCause() instanceof IOException;
+    }
+
+    private String sendChatCompletion(String prompt, int maxTokens, String stage, SpinArguments subject) {
+
+        Deadline deadline = Deadline.current();
+        ChatCompletionRequest request = ChatCompletionRequest.of(prompt, affordableTokens(maxTokens, deadline, stage), false);
+
+        SpinEvents.Completion completion = new SpinEvents.Completion();
+        completion.begin();
+        completion.spin(subject);
+        completion.kind = stage;
+        completion.outcome = "failed";
+
+        SpinEvents.UpstreamConnect connect = new SpinEvents.UpstreamConnect();
+        connect.begin();
+        connect.spin(subject);
+        connect.host = COMPLETIONS_HOST;
+        connect.outcome = "failed";
+
+        Span span = Tracer.start("huggingface.completion")
+            .attribute("completion.kind", stage)
+            .attribute("completion.max_tokens", request.maxTokens());
+
+        try (Tracer.Scope ignored = span.makeCurrent()) {
+
+            ResponseEntity<String> response = restTemplate.execute(
+                COMPLETIONS_URL,
+                HttpMethod.POST,
+                httpRequest -> {
+                    httpRequest.getHeaders().addAll(completionHeaders);
+                    httpRequest.getHeaders().set(Tracer.TRACEPARENT, span.traceparent());
+                    chatCompletionWriter.writeTo(request, httpRequest.getBody());
+                },
+                httpResponse -> {
+                    // Called once the response headers are in; committed in the finally block
+                    connect.end();
+                    connect.status = httpResponse.getStatusCode().value();
+                    connect.outcome = httpResponse.getStatusCode().is2xxSuccessful() ? "connected" : "rejected";
+                    span.event("response_headers", Map.of("status", connect.status));
+                    return new ResponseEntity<>(
+                        StreamUtils.copyToString(httpResponse.getBody(), StandardCharsets.UTF_8), httpResponse.getStatusCode());
+                }
             );
 
             if (!response.getStatusCode().is2xxSuccessful() || response.getBody() == null) {
@@ -224,15 +467,70 @@ public class HuggingFaceService {
                 throw new ResponseStatusException(response.getStatusCode(), "HuggingFace generation failed");
             }
             
-            return extractText(response.getBody());
+            String text = extractText(response.getBody());
+
+            completion.outcome = "completed";
+            completion.promptTokens = estimateTokens(prompt);
+            completion.completionTokens = estimateTokens(text);
+            span.attribute("prompt.tokens", completion.promptTokens).attribute("completion.tokens", completion.completionTokens);
+
+            return text;
 
         } catch (org.springframework.web.client.HttpStatusCodeException ex) {
 
+            // Error statuses never reach the response extractor
+            connect.status = ex.getStatusCode().value();
+            connect.outcome = "rejected";
+            span.error(ex);
+
             String body = ex.getResponseBodyAsString();
             log.error("HuggingFace text error: status {} body {}", ex.getStatusCode(), body);
             throw new ResponseStatusException(ex.getStatusCode(), "HuggingFace text error: " + body);
 
+        } catch (ResourceAccessException ex) {
+
+            span.error(ex);
+            if (deadline.isExpired()) {
+                throw deadline.expired(stage);
+            }
+            throw ex;
+
+        } catch (RuntimeException ex) {
+            span.error(ex);
+            throw ex;
+        } finally {
+            connect.commit();
+            completion.commit();
+            span.attribute("http.status_code", connect.status).end();
+        }
+    }
+
+    // Caps max_tokens to what can be generated before the deadline; fails fast when not even MIN_TOKENS
+    // (or the smaller remainder a continuation asks for) fit
+    private int affordableTokens(int maxTokens, Deadline deadline, String stage) {
+
+        if (!deadline.isBounded()) {
+            return maxTokens;
+        }
+
+        long affordable = (deadline.remainingMillis() - firstTokenMillis) * tokensPerSecond / 1000;
+        if (affordable < Math.min(MIN_TOKENS, maxTokens)) {
+            throw deadline.expired(stage);
         }
+
+        return (int) Math.min(maxTokens, affordable);
+    }
+
+    private void recordGeneration(String kind, String key, String seedLink, String prompt, String text, long startedAt) {
+
+        long now = System.currentTimeMillis();
+        generationCache.record(new GenerationRecord(kind, key, seedLink, text, MODEL, now - startedAt,
+            estimateTokens(prompt), estimateTokens(text), now));
+    }
+
+    // Roughly four characters per token for Latin-script text
+    private static int estimateTokens(CharSequence text) {
+        return (text.length() + 3) / 4;
     }
 
     private Iterable<String> extractStreamDelta(String chunk) {
@@ -279,7 +577,8 @@ public class HuggingFaceService {
         int width = 512;
         int height = 512;
 
-        String prompt = buildStoryPrompt(arguments, seedText);
+        // Related biographies are left out here; the prompt travels in the URL path
+        String prompt = buildStoryPrompt(arguments, seedText, List.of());
 
         URI uri = UriComponentsBuilder
             .fromHttpUrl("https://image.pollinations.ai/prompt/{prompt}")
@@ -292,7 +591,18 @@ public class HuggingFaceService {
         HttpHeaders headers = new HttpHeaders();
         headers.setAccept(List.of(MediaType.IMAGE_PNG, MediaType.IMAGE_JPEG, MediaType.ALL));
 
-        try {
+        Deadline deadline = Deadline.current();
+        deadline.check("image generation");
+
+        SpinEvents.ImageDownload event = new SpinEvents.ImageDownload();
+        event.begin();
+        event.spin(arguments);
+        event.outcome = "failed";
+
+        Span span = Tracer.start("pollinations.image").attribute("image.width", width).attribute("image.height", height);
+        headers.set(Tracer.TRACEPARENT, span.traceparent());
+
+        try (Tracer.Scope ignored = span.makeCurrent()) {
 
             ResponseEntity<byte[]> response = restTemplate.exchange(
                 uri,
@@ -301,6 +611,8 @@ public class HuggingFaceService {
                 byte[].class
             );
 
+            event.status = response.getStatusCode().value();
+
             if (!response.getStatusCode().is2xxSuccessful() || response.getBody() == null || response.getBody().length == 0) {
                 log.error("Pollinations image call failed: status {}", response.getStatusCode());
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_GATEWAY,
@@ -312,16 +624,32 @@ public class HuggingFaceService {
                 contentType = MediaType.IMAGE_JPEG;
             }
 
+            event.outcome = "downloaded";
+            event.contentType = contentType.toString();
+            event.bytes = response.getBody().length;
+
             return new ImageResult(response.getBody(), contentType);
 
         } catch (org.springframework.web.client.HttpStatusCodeException ex) {
+            event.status = ex.getStatusCode().value();
+            span.error(ex);
             String body = ex.getResponseBodyAsString();
             log.error("Pollinations image error: status {} body {}", ex.getStatusCode(), body);
             throw new ResponseStatusException(ex.getStatusCode(), "Pollinations image error: " + body);
         } catch (Exception ex) {
+            span.error(ex);
+            if (deadline.isExpired()) {
+                throw deadline.expired("image generation");
+            }
             log.error("Pollinations image request failed", ex);
             throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_GATEWAY,
                 "Pollinations image generation failed", ex);
+        } finally {
+            event.commit();
+            span.attribute("http.status_code", event.status)
+                .attribute("image.bytes", event.bytes)
+                .attribute("image.content_type", event.contentType)
+                .end();
         }
     }
 
@@ -363,5 +691,69 @@ public class HuggingFaceService {
         }
     }
 
+    // Opens pooled connections to the upstreams, so the first spin skips DNS and TLS handshakes. Any HTTP status will do.
+    public void warmUpConnections(Duration timeout) {
+
+        try {
+            webClient.head()
+                .uri(MODELS_URL)
+                .exchangeToMono(response -> response.releaseBody())
+                .block(timeout);
+        } catch (RuntimeException e) {
+            log.warn("Warm-up of the streaming client failed", e);
+        }
+
+        for (String url : List.of(MODELS_URL, "https://image.pollinations.ai/")) {
+            try {
+                restTemplate.headForHeaders(url);
+            } catch (org.springframework.web.client.HttpStatusCodeException e) {
+                // Connected; the status does not matter
+            } catch (RuntimeException e) {
+                log.warn("Warm-up connection to {} failed", url, e);
+            }
+        }
+    }
+
+    // One pass over the prompt, serialization and response parsing code with synthetic data, for the JIT
+    public int exerciseCodePaths() {
+
+        SpinArguments arguments = WARMUP_KEY.toArguments();
+        SeedResult seed = new SeedResult(WARMUP_TEXT, null);
+
+        String storyPrompt = buildStoryPrompt(arguments, seed.getText(), List.of(seed));
+        String comparePrompt = buildComparePrompt(arguments, arguments, WARMUP_TEXT, WARMUP_TEXT);
+
+        int produced = storyPrompt.length() + comparePrompt.length();
+
+        try {
+            chatCompletionWriter.writeTo(ChatCompletionRequest.of(storyPrompt, MAX_TOKENS, true), OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (String delta : extractStreamDelta(WARMUP_STREAM_CHUNK)) {
+            produced += delta.length();
+        }
+        produced += extractText(WARMUP_COMPLETION).length();
+
+        return produced;
+    }
+
     public record ImageResult(byte[] data, MediaType contentType) {}
+
+    // Per-stream retry bookkeeping; only touched from the stream's own signals
+    private static final class StreamState {
+        private final Deadline deadline;
+        private final SpinArguments subject;
+        private final Span span;
+        private final StringBuilder received = new StringBuilder();
+        private int retries;
+        private long firstFailureAt;
+
+        private StreamState(Deadline deadline, SpinArguments subject, Span span) {
+            this.deadline = deadline;
+            this.subject = subject;
+            this.span = span;
+        }
+    }
 }
\ No newline at end of file
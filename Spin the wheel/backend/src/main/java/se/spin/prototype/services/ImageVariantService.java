@@ -0,0 +1,192 @@
+package se.spin.prototype.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import se.spin.prototype.util.LruCache;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Scaled-down JPEG variants of generated images, cached by image hash and size
+@Component
+public class ImageVariantService {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageVariantService.class);
+
+    public enum Size {
+        THUMB(128),
+        MEDIUM(256),
+        FULL(0);
+
+        private final int maxEdge;
+
+        Size(int maxEdge) {
+            this.maxEdge = maxEdge;
+        }
+
+        public static Size parse(String value) {
+            try {
+                return Size.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "size must be one of thumb, medium or full");
+            }
+        }
+    }
+
+    private final float jpegQuality;
+    private final ExecutorService workers;
+    private final LruCache<String, HuggingFaceService.ImageResult> variants;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter failures;
+
+    public ImageVariantService(MeterRegistry meterRegistry,
+                               @Value("${spin.images.variant-cache-size:256}") int cacheSize,
+                               @Value("${spin.images.resize-threads:2}") int resizeThreads,
+                               @Value("${spin.images.jpeg-quality:0.82}") float jpegQuality) {
+
+        this.jpegQuality = jpegQuality;
+        this.variants = new LruCache<>(cacheSize);
+
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(resizeThreads, runnable -> {
+            Thread thread = new Thread(runnable, "spin-image-resize-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.hits = meterRegistry.counter("spin.images.variants", "result", "hit");
+        this.misses = meterRegistry.counter("spin.images.variants", "result", "miss");
+        this.failures = meterRegistry.counter("spin.images.variants", "result", "failed");
+    }
+
+    // Completes with the original when the size is FULL or the image cannot be decoded
+    public CompletableFuture<HuggingFaceService.ImageResult> variant(HuggingFaceService.ImageResult original, Size size) {
+
+        if (size == Size.FULL) {
+            return CompletableFuture.completedFuture(original);
+        }
+
+        String key = UUID.nameUUIDFromBytes(original.data()) + ":" + size;
+
+        HuggingFaceService.ImageResult cached = variants.get(key);
+        if (cached != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        misses.increment();
+
+        return CompletableFuture.supplyAsync(() -> {
+            HuggingFaceService.ImageResult scaled = scale(original, size);
+            variants.put(key, scaled);
+            return scaled;
+        }, workers);
+    }
+
+    private HuggingFaceService.ImageResult scale(HuggingFaceService.ImageResult original, Size size) {
+
+        try {
+
+            BufferedImage source = ImageIO.read(new ByteArrayInputStream(original.data()));
+            if (source == null) {
+                failures.increment();
+                return original;
+            }
+
+            int width = source.getWidth();
+            int height = source.getHeight();
+            if (Math.max(width, height) <= size.maxEdge) {
+                return original;
+            }
+
+            double ratio = (double) size.maxEdge / Math.max(width, height);
+            int targetWidth = Math.max(1, (int) Math.round(width * ratio));
+            int targetHeight = Math.max(1, (int) Math.round(height * ratio));
+
+            return new HuggingFaceService.ImageResult(encodeJpeg(resize(source, targetWidth, targetHeight)), MediaType.IMAGE_JPEG);
+
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            log.warn("Failed to scale image to {}, serving the original", size, e);
+            return original;
+        }
+    }
+
+    // Halves the image until close to the target, then one bilinear pass; cheaper than bicubic with similar quality
+    private static BufferedImage resize(BufferedImage source, int targetWidth, int targetHeight) {
+
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+
+            BufferedImage next = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                g.dispose();
+            }
+            current = next;
+
+        } while (width != targetWidth || height != targetHeight);
+
+        return current;
+    }
+
+    private byte[] encodeJpeg(BufferedImage image) throws IOException {
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(jpegQuality);
+
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+
+        } finally {
+            writer.dispose();
+        }
+
+        return out.toByteArray();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,136 @@
+package se.spin.prototype.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+import se.spin.prototype.util.TextUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+// Place names from a data file, looked up by prefix in a sorted array of diacritic-folded keys
+@Component
+public class PlaceCatalog {
+
+    private static final Logger log = LoggerFactory.getLogger(PlaceCatalog.class);
+
+    // Catalog order, used when no prefix is given
+    private final String[] places;
+
+    // Same names sorted by folded key
+    private final String[] sortedKeys;
+    private final String[] sortedNames;
+
+    private final String version;
+
+    public PlaceCatalog(@Value("${spin.catalog.places:classpath:catalog/places.txt}") Resource resource) {
+
+        this.places = readPlaces(resource);
+
+        Integer[] order = new Integer[places.length];
+        String[] keys = new String[places.length];
+        for (int i = 0; i < places.length; i++) {
+            order[i] = i;
+            keys[i] = TextUtil.foldDiacritics(places[i]);
+        }
+        Arrays.sort(order, Comparator.<Integer, String>comparing(i -> keys[i]).thenComparing(i -> places[i]));
+
+        this.sortedKeys = new String[places.length];
+        this.sortedNames = new String[places.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedKeys[i] = keys[order[i]];
+            sortedNames[i] = places[order[i]];
+        }
+
+        CRC32 crc = new CRC32();
+        for (String place : places) {
+            crc.update(place.getBytes(StandardCharsets.UTF_8));
+            crc.update('\n');
+        }
+        this.version = Long.toHexString(crc.getValue());
+
+        log.info("Loaded {} places from {}", places.length, resource.getDescription());
+    }
+
+    public Page search(String prefix, int page, int size) {
+
+        String key = TextUtil.foldDiacritics(prefix);
+
+        int from;
+        int to;
+        String[] source;
+
+        if (key.isEmpty()) {
+            source = places;
+            from = 0;
+            to = places.length;
+        } else {
+            source = sortedNames;
+            from = lowerBound(key);
+            // U+FFFF sorts after every character a key can continue with
+            to = lowerBound(key + '\uffff');
+        }
+
+        int total = to - from;
+        int start = (int) Math.min((long) page * size, total);
+        int end = Math.min(start + size, total);
+
+        return new Page(List.of(Arrays.copyOfRange(source, from + start, from + end)), total);
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    private int lowerBound(String key) {
+
+        int lo = 0;
+        int hi = sortedKeys.length;
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sortedKeys[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    private static String[] readPlaces(Resource resource) {
+
+        Set<String> places = new LinkedHashSet<>();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8))) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String place = line.trim();
+                if (!place.isEmpty() && !place.startsWith("#")) {
+                    places.add(place);
+                }
+            }
+
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read place catalog " + resource.getDescription(), e);
+        }
+
+        return new ArrayList<>(places).toArray(String[]::new);
+    }
+
+    public record Page(List<String> items, int total) {}
+}
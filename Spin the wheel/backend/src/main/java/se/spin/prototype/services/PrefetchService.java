@@ -0,0 +1,277 @@
+package se.spin.prototype.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.spin.prototype.Beans.GenderEnum;
+import se.spin.prototype.Beans.SeedResult;
+import se.spin.prototype.Beans.SpinArguments;
+import se.spin.prototype.util.LruCache;
+import se.spin.prototype.util.SpinKey;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Speculatively generates the spins a user is most likely to ask for next, within a token budget
+@Component
+public class PrefetchService {
+
+    private static final Logger log = LoggerFactory.getLogger(PrefetchService.class);
+
+    // Rough prompt size in tokens, added to max_tokens when reserving budget
+    private static final int PROMPT_TOKEN_ESTIMATE = 150;
+    private static final int STORY_MAX_TOKENS = 256;
+
+    private static final int GLOBAL_HISTORY = 1000;
+    private static final int SESSION_HISTORY = 20;
+    private static final int MAX_SESSIONS = 1000;
+
+    private final FirestoreService firestoreService;
+    private final HuggingFaceService huggingFaceService;
+
+    private final boolean enabled;
+    private final boolean prefetchImages;
+    private final int candidates;
+    private final long tokenBudget;
+    private final long budgetWindowMillis;
+
+    private final ThreadPoolExecutor executor;
+    private final LruCache<SpinKey, PrefetchedStory> stories;
+    private final LruCache<SpinKey, HuggingFaceService.ImageResult> images;
+    private final Set<SpinKey> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final Deque<SpinKey> globalHistory = new ArrayDeque<>();
+    private final Map<SpinKey, Integer> globalCounts = new HashMap<>();
+    private final LruCache<String, Deque<SpinKey>> sessionHistory = new LruCache<>(MAX_SESSIONS);
+
+    private long windowStart = System.currentTimeMillis();
+    private long tokensSpent;
+
+    private final Counter storyHits;
+    private final Counter storyMisses;
+    private final Counter imageHits;
+    private final Counter imageMisses;
+    private final Counter generated;
+    private final Counter skippedBudget;
+    private final Counter skippedQueue;
+    private final Counter tokens;
+
+    public PrefetchService(FirestoreService firestoreService,
+                           HuggingFaceService huggingFaceService,
+                           MeterRegistry meterRegistry,
+                           @Value("${spin.prefetch.enabled:true}") boolean enabled,
+                           @Value("${spin.prefetch.images:true}") boolean prefetchImages,
+                           @Value("${spin.prefetch.candidates:2}") int candidates,
+                           @Value("${spin.prefetch.cache-size:64}") int cacheSize,
+                           @Value("${spin.prefetch.token-budget:20000}") long tokenBudget,
+                           @Value("${spin.prefetch.budget-window-minutes:60}") long budgetWindowMinutes) {
+
+        this.firestoreService = firestoreService;
+        this.huggingFaceService = huggingFaceService;
+        this.enabled = enabled;
+        this.prefetchImages = prefetchImages;
+        this.candidates = candidates;
+        this.tokenBudget = tokenBudget;
+        this.budgetWindowMillis = TimeUnit.MINUTES.toMillis(budgetWindowMinutes);
+
+        this.stories = new LruCache<>(cacheSize);
+        this.images = new LruCache<>(cacheSize);
+
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(candidates * 4 + 1),
+            runnable -> {
+                Thread thread = new Thread(runnable, "spin-prefetch");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+
+        this.storyHits = meterRegistry.counter("spin.prefetch.requests", "kind", "story", "result", "hit");
+        this.storyMisses = meterRegistry.counter("spin.prefetch.requests", "kind", "story", "result", "miss");
+        this.imageHits = meterRegistry.counter("spin.prefetch.requests", "kind", "image", "result", "hit");
+        this.imageMisses = meterRegistry.counter("spin.prefetch.requests", "kind", "image", "result", "miss");
+        this.generated = meterRegistry.counter("spin.prefetch.generated");
+        this.skippedBudget = meterRegistry.counter("spin.prefetch.skipped", "reason", "budget");
+        this.skippedQueue = meterRegistry.counter("spin.prefetch.skipped", "reason", "queue_full");
+        this.tokens = meterRegistry.counter("spin.prefetch.tokens");
+
+        meterRegistry.gauge("spin.prefetch.cache.size", stories, LruCache::size);
+        meterRegistry.gauge("spin.prefetch.hit.ratio", this, PrefetchService::storyHitRatio);
+    }
+
+    public void recordSpin(String sessionId, SpinArguments arguments) {
+
+        if (!enabled) {
+            return;
+        }
+
+        SpinKey current = SpinKey.of(arguments);
+        List<SpinKey> next;
+
+        synchronized (this) {
+            globalHistory.addLast(current);
+            globalCounts.merge(current, 1, Integer::sum);
+            if (globalHistory.size() > GLOBAL_HISTORY) {
+                SpinKey oldest = globalHistory.removeFirst();
+                globalCounts.computeIfPresent(oldest, (k, v) -> v > 1 ? v - 1 : null);
+            }
+
+            Deque<SpinKey> session = sessionHistory.get(sessionId);
+            if (session == null) {
+                session = new ArrayDeque<>();
+                sessionHistory.put(sessionId, session);
+            }
+            session.addLast(current);
+            if (session.size() > SESSION_HISTORY) {
+                session.removeFirst();
+            }
+
+            next = rankCandidates(current, session);
+        }
+
+        for (SpinKey key : next) {
+            schedule(key);
+        }
+    }
+
+    public Optional<PrefetchedStory> takeStory(SpinArguments arguments) {
+
+        PrefetchedStory story = stories.remove(SpinKey.of(arguments));
+        (story != null ? storyHits : storyMisses).increment();
+
+        return Optional.ofNullable(story);
+    }
+
+    public Optional<HuggingFaceService.ImageResult> takeImage(SpinArguments arguments) {
+
+        HuggingFaceService.ImageResult image = images.remove(SpinKey.of(arguments));
+        (image != null ? imageHits : imageMisses).increment();
+
+        return Optional.ofNullable(image);
+    }
+
+    // Called with the monitor held
+    private List<SpinKey> rankCandidates(SpinKey current, Deque<SpinKey> session) {
+
+        Map<SpinKey, Double> scores = new HashMap<>();
+
+        globalCounts.forEach((key, count) -> scores.merge(key, (double) count, Double::sum));
+        for (SpinKey key : session) {
+            scores.merge(key, 3.0, Double::sum);
+        }
+
+        // The slot machine usually changes a single reel between spins
+        for (GenderEnum gender : GenderEnum.values()) {
+            scores.merge(current.withGender(gender), 1.0, Double::sum);
+        }
+        scores.replaceAll((key, score) -> reelsChanged(current, key) == 1 ? score + 2.0 : score);
+
+        scores.remove(current);
+
+        return scores.entrySet().stream()
+            .filter(e -> !stories.containsKey(e.getKey()) && !inFlight.contains(e.getKey()))
+            .sorted(Map.Entry.<SpinKey, Double>comparingByValue(Comparator.reverseOrder()))
+            .limit(candidates)
+            .map(Map.Entry::getKey)
+            .toList();
+    }
+
+    private void schedule(SpinKey key) {
+
+        if (!inFlight.add(key)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    prefetch(key);
+                } finally {
+                    inFlight.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key);
+            skippedQueue.increment();
+        }
+    }
+
+    private void prefetch(SpinKey key) {
+
+        if (!reserveTokens(PROMPT_TOKEN_ESTIMATE + STORY_MAX_TOKENS)) {
+            skippedBudget.increment();
+            return;
+        }
+
+        try {
+
+            SpinArguments arguments = key.toArguments();
+            SeedResult seed = firestoreService.fetchSeedOrFallback(arguments);
+
+            String story = huggingFaceService.generateStory(arguments, seed);
+            stories.put(key, new PrefetchedStory(story, seed.getLink()));
+
+            if (prefetchImages) {
+                images.put(key, huggingFaceService.generateImage(arguments, seed.getText()));
+            }
+
+            generated.increment();
+            log.debug("Prefetched spin {}", key);
+
+        } catch (RuntimeException e) {
+            log.warn("Prefetch of spin {} failed", key, e);
+        }
+    }
+
+    private synchronized boolean reserveTokens(long amount) {
+
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= budgetWindowMillis) {
+            windowStart = now;
+            tokensSpent = 0;
+        }
+
+        if (tokensSpent + amount > tokenBudget) {
+            return false;
+        }
+
+        tokensSpent += amount;
+        tokens.increment(amount);
+        return true;
+    }
+
+    private double storyHitRatio() {
+        double total = storyHits.count() + storyMisses.count();
+        return total == 0 ? 0.0 : storyHits.count() / total;
+    }
+
+    private static int reelsChanged(SpinKey a, SpinKey b) {
+        int changed = 0;
+        if (!a.city().equals(b.city())) changed++;
+        if (a.year() != b.year()) changed++;
+        if (a.gender() != b.gender()) changed++;
+        return changed;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public record PrefetchedStory(String text, String link) {}
+}
@@ -0,0 +1,73 @@
+package se.spin.prototype.services;
+
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// Deterministic stand-in for a sentence embedding model: hashed words and trigrams, L2-normalised
+@Component
+public class SeedEmbedder {
+
+    public static final int DIMENSIONS = 256;
+
+    public float[] embed(String text) {
+
+        float[] vector = new float[DIMENSIONS];
+
+        if (text == null || text.isBlank()) {
+            return vector;
+        }
+
+        for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+
+            if (token.isEmpty())
+                continue;
+
+            addFeature(vector, token, 1.0f);
+
+            String padded = "#" + token + "#";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                addFeature(vector, padded.substring(i, i + 3), 0.5f);
+            }
+        }
+
+        normalize(vector);
+        return vector;
+    }
+
+    private void addFeature(float[] vector, String feature, float weight) {
+
+        int hash = fnv1a(feature);
+        int bucket = Math.floorMod(hash, DIMENSIONS);
+        float sign = ((hash >>> 31) == 0) ? 1.0f : -1.0f;
+
+        vector[bucket] += sign * weight;
+    }
+
+    private void normalize(float[] vector) {
+
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+
+        if (norm == 0)
+            return;
+
+        float inv = (float) (1.0 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] *= inv;
+        }
+    }
+
+    private static int fnv1a(String s) {
+
+        int hash = 0x811c9dc5;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+}
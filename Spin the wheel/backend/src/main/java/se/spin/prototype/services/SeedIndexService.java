@@ -0,0 +1,323 @@
+package se.spin.prototype.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import se.spin.prototype.Beans.SeedResult;
+import se.spin.prototype.Beans.SpinArguments;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-memory vector index over seed texts, persisted as an append-only file and scanned exactly
+@Component
+public class SeedIndexService {
+
+    private static final Logger log = LoggerFactory.getLogger(SeedIndexService.class);
+    private static final int MAGIC = 0x53454544;
+    private static final int HEADER_BYTES = 8;
+
+    private final FirestoreService firestoreService;
+    private final SeedEmbedder embedder;
+    private final Path indexPath;
+    private final int topK;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object fileMonitor = new Object();
+    private final Set<String> ids = new HashSet<>();
+    private final List<SeedResult> entries = new ArrayList<>();
+    private float[] vectors = new float[SeedEmbedder.DIMENSIONS * 64];
+    private int size;
+
+    public SeedIndexService(FirestoreService firestoreService,
+                            SeedEmbedder embedder,
+                            @Value("${spin.seed-index.path:data/seed-index.bin}") String indexPath,
+                            @Value("${spin.seed-index.top-k:3}") int topK) {
+        this.firestoreService = firestoreService;
+        this.embedder = embedder;
+        this.indexPath = Path.of(indexPath);
+        this.topK = topK;
+        load();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void syncInBackground() {
+        Thread thread = new Thread(this::syncFromFirestore, "seed-index-sync");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void syncFromFirestore() {
+
+        try {
+
+            int added = 0;
+            for (FirestoreService.SeedDocument doc : firestoreService.fetchAllSeeds()) {
+                if (add(doc.id(), doc.text(), doc.link(), indexText(doc))) {
+                    added++;
+                }
+            }
+
+            log.info("Seed index synced: {} new entries, {} total", added, size());
+
+        } catch (RuntimeException e) {
+            log.warn("Seed index sync from Firestore failed", e);
+        }
+    }
+
+    public boolean add(String id, String text, String link, String indexText) {
+
+        float[] vector = embedder.embed(indexText);
+
+        lock.writeLock().lock();
+        try {
+
+            if (!ids.add(id)) {
+                return false;
+            }
+
+            insert(new SeedResult(text, link), vector);
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        append(id, text, link, vector);
+        return true;
+    }
+
+    public List<SeedResult> findRelated(SpinArguments arguments, String excludeText) {
+
+        if (topK <= 0) {
+            return List.of();
+        }
+
+        String query = arguments.getCity() + " " + arguments.getYear() + " " + arguments.getGender().getId().name();
+
+        List<SeedResult> hits = search(embedder.embed(query), topK + 1);
+        List<SeedResult> related = new ArrayList<>(topK);
+
+        for (SeedResult hit : hits) {
+            if (related.size() == topK)
+                break;
+            if (!hit.getText().equals(excludeText)) {
+                related.add(hit);
+            }
+        }
+
+        return related;
+    }
+
+    public List<SeedResult> search(float[] query, int k) {
+
+        lock.readLock().lock();
+        try {
+
+            int n = Math.min(k, size);
+            if (n == 0) {
+                return List.of();
+            }
+
+            int dims = SeedEmbedder.DIMENSIONS;
+            int[] best = new int[n];
+            float[] bestScores = new float[n];
+            Arrays.fill(bestScores, Float.NEGATIVE_INFINITY);
+
+            for (int row = 0; row < size; row++) {
+
+                int offset = row * dims;
+                float score = 0;
+                for (int d = 0; d < dims; d++) {
+                    score += vectors[offset + d] * query[d];
+                }
+
+                if (score <= bestScores[n - 1])
+                    continue;
+
+                // Insertion into the small sorted top-k arrays
+                int pos = n - 1;
+                while (pos > 0 && bestScores[pos - 1] < score) {
+                    bestScores[pos] = bestScores[pos - 1];
+                    best[pos] = best[pos - 1];
+                    pos--;
+                }
+                bestScores[pos] = score;
+                best[pos] = row;
+            }
+
+            List<SeedResult> results = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                results.add(entries.get(best[i]));
+            }
+            return results;
+
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void insert(SeedResult entry, float[] vector) {
+
+        int dims = SeedEmbedder.DIMENSIONS;
+        if ((size + 1) * dims > vectors.length) {
+            vectors = Arrays.copyOf(vectors, vectors.length * 2);
+        }
+
+        System.arraycopy(vector, 0, vectors, size * dims, dims);
+        entries.add(entry);
+        size++;
+    }
+
+    private void load() {
+
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+        } catch (IOException e) {
+            log.warn("Failed to load seed index {}", indexPath, e);
+            return;
+        }
+
+        if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != SeedEmbedder.DIMENSIONS) {
+            // Appending after a foreign header would never load again; the index is rebuilt from Firestore
+            log.warn("Discarding seed index {} with unexpected header", indexPath);
+            truncate(0);
+            return;
+        }
+
+        int good = buffer.position();
+        try {
+
+            while (buffer.hasRemaining()) {
+
+                String id = readString(buffer);
+                String text = readString(buffer);
+                String link = readString(buffer);
+                float[] vector = new float[SeedEmbedder.DIMENSIONS];
+                buffer.asFloatBuffer().get(vector);
+                buffer.position(buffer.position() + vector.length * Float.BYTES);
+
+                if (ids.add(id)) {
+                    insert(new SeedResult(text, link.isEmpty() ? null : link), vector);
+                }
+                good = buffer.position();
+            }
+
+            log.info("Loaded {} seed index entries from {}", size, indexPath);
+
+        } catch (BufferUnderflowException e) {
+            // Cut back to the last whole entry, so later appends start on a clean boundary
+            log.warn("Seed index {} ends with a truncated entry; kept {} entries", indexPath, size);
+            truncate(good);
+        }
+    }
+
+    private void truncate(long length) {
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        } catch (IOException e) {
+            log.warn("Failed to truncate seed index {}", indexPath, e);
+        }
+    }
+
+    // Serialised on its own monitor, so readers and in-memory inserts never wait on the disk
+    private void append(String id, String text, String link, float[] vector) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeString(out, id);
+            writeString(out, text);
+            writeString(out, link != null ? link : "");
+            for (float v : vector) {
+                out.writeFloat(v);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        synchronized (fileMonitor) {
+
+            long end = -1;
+            try {
+
+                Path parent = indexPath.toAbsolutePath().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+
+                try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+
+                    end = channel.size();
+                    byte[] entry = bytes.toByteArray();
+                    ByteBuffer write = end == 0
+                        ? ByteBuffer.allocate(HEADER_BYTES + entry.length).putInt(MAGIC).putInt(SeedEmbedder.DIMENSIONS).put(entry).flip()
+                        : ByteBuffer.wrap(entry);
+
+                    channel.position(end);
+                    while (write.hasRemaining()) {
+                        channel.write(write);
+                    }
+                }
+
+            } catch (IOException e) {
+                log.warn("Failed to persist seed index entry {}", id, e);
+                if (end >= 0) {
+                    truncate(end);
+                }
+            }
+        }
+    }
+
+    private static String indexText(FirestoreService.SeedDocument doc) {
+        return doc.city() + " " + doc.year() + " " + doc.gender() + " " + doc.text();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
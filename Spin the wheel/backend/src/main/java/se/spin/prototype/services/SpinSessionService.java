@@ -0,0 +1,104 @@
+package se.spin.prototype.services;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.spin.prototype.Beans.SeedResult;
+import se.spin.prototype.Beans.SpinArguments;
+import se.spin.prototype.tracing.Tracer;
+import se.spin.prototype.util.Deadline;
+import se.spin.prototype.util.LruCache;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Spin sessions: one seed lookup shared by a story stream and an image fetched later by session id
+@Component
+public class SpinSessionService {
+
+    private final FirestoreService firestoreService;
+    private final HuggingFaceService huggingFaceService;
+    private final PrefetchService prefetchService;
+
+    private final LruCache<String, SpinSession> sessions;
+    private final long ttlMillis;
+    private final ExecutorService imageExecutor;
+
+    public SpinSessionService(FirestoreService firestoreService,
+                              HuggingFaceService huggingFaceService,
+                              PrefetchService prefetchService,
+                              @Value("${spin.session.max-sessions:256}") int maxSessions,
+                              @Value("${spin.session.ttl-minutes:10}") long ttlMinutes,
+                              @Value("${spin.session.image-threads:4}") int imageThreads) {
+
+        this.firestoreService = firestoreService;
+        this.huggingFaceService = huggingFaceService;
+        this.prefetchService = prefetchService;
+        this.sessions = new LruCache<>(maxSessions);
+        this.ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+
+        AtomicInteger counter = new AtomicInteger();
+        this.imageExecutor = Executors.newFixedThreadPool(imageThreads, runnable -> {
+            Thread thread = new Thread(runnable, "spin-session-image-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public SpinSession start(SpinArguments arguments) {
+
+        SeedResult seed = firestoreService.fetchSeedOrFallback(arguments);
+
+        // The image spans and budget belong to the request that started the session
+        Callable<HuggingFaceService.ImageResult> generate = Deadline.current().wrap(Tracer.wrap(Tracer.current(),
+            () -> prefetchService.takeImage(arguments).orElseGet(() -> huggingFaceService.generateImage(arguments, seed.getText()))));
+
+        CompletableFuture<HuggingFaceService.ImageResult> image = CompletableFuture.supplyAsync(() -> {
+            try {
+                return generate.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, imageExecutor);
+
+        SpinSession session = new SpinSession(UUID.randomUUID().toString(), arguments, seed, image, System.currentTimeMillis());
+        sessions.put(session.id(), session);
+
+        return session;
+    }
+
+    public Optional<SpinSession> find(String id) {
+
+        SpinSession session = sessions.get(id);
+        if (session == null) {
+            return Optional.empty();
+        }
+
+        if (System.currentTimeMillis() - session.createdAt() > ttlMillis) {
+            sessions.remove(id);
+            return Optional.empty();
+        }
+
+        return Optional.of(session);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        imageExecutor.shutdownNow();
+    }
+
+    public record SpinSession(String id,
+                              SpinArguments arguments,
+                              SeedResult seed,
+                              CompletableFuture<HuggingFaceService.ImageResult> image,
+                              long createdAt) {}
+}
@@ -0,0 +1,47 @@
+package se.spin.prototype.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Time from JVM start to application ready and to the first successfully completed spin
+@Component
+public class StartupMetrics {
+
+    private static final Logger log = LoggerFactory.getLogger(StartupMetrics.class);
+
+    private final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private final AtomicLong readyMillis = new AtomicLong(-1);
+    private final AtomicLong firstSpinMillis = new AtomicLong(-1);
+
+    public StartupMetrics(MeterRegistry meterRegistry) {
+        TimeGauge.builder("spin.startup.ready", readyMillis, TimeUnit.MILLISECONDS, StartupMetrics::valueOrNaN).register(meterRegistry);
+        TimeGauge.builder("spin.startup.first.spin", firstSpinMillis, TimeUnit.MILLISECONDS, StartupMetrics::valueOrNaN).register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady() {
+        readyMillis.set(System.currentTimeMillis() - jvmStartMillis);
+        log.info("Ready {} ms after JVM start", readyMillis.get());
+    }
+
+    public void spinCompleted() {
+        if (firstSpinMillis.get() < 0 && firstSpinMillis.compareAndSet(-1, System.currentTimeMillis() - jvmStartMillis)) {
+            log.info("First successful spin {} ms after JVM start", firstSpinMillis.get());
+        }
+    }
+
+    // Not reported until the moment has happened
+    private static double valueOrNaN(AtomicLong millis) {
+        long value = millis.get();
+        return value < 0 ? Double.NaN : value;
+    }
+}
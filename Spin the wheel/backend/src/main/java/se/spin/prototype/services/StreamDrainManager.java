@@ -0,0 +1,251 @@
+package se.spin.prototype.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.Disposable;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+// Refuses new spins once shutdown starts and gives open streams a grace period; leftovers are cut off
+// with a "retry" event. Stops ahead of the web server's graceful shutdown
+@Component
+public class StreamDrainManager implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamDrainManager.class);
+
+    // How often idle streams are looked for while draining
+    private static final long IDLE_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private final long gracePeriodMillis;
+    private final long retryMillis;
+
+    // Keyed by the emitter, or by the handle of a stream that has none
+    private final Map<Object, ActiveStream> streams = new ConcurrentHashMap<>();
+    private final Object drainMonitor = new Object();
+
+    private volatile boolean running;
+    private volatile boolean draining;
+
+    private final Counter drained;
+    private final Counter aborted;
+    private final Counter rejected;
+    private final Timer drainTime;
+
+    public StreamDrainManager(MeterRegistry meterRegistry,
+                              @Value("${spin.drain.grace-period-ms:20000}") long gracePeriodMillis,
+                              @Value("${spin.drain.retry-ms:3000}") long retryMillis) {
+
+        this.gracePeriodMillis = gracePeriodMillis;
+        this.retryMillis = retryMillis;
+
+        this.drained = meterRegistry.counter("spin.drain.streams", "result", "drained");
+        this.aborted = meterRegistry.counter("spin.drain.streams", "result", "aborted");
+        this.rejected = meterRegistry.counter("spin.drain.rejected");
+        this.drainTime = meterRegistry.timer("spin.drain.duration");
+        meterRegistry.gauge("spin.streams.active", streams, Map::size);
+    }
+
+    // Call before any work for a new spin; refuses it once shutdown has started
+    public void admit() {
+        if (draining) {
+            rejected.increment();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Shutting down; retry against another instance");
+        }
+    }
+
+    // Tracks the emitter until it completes; takes over its completion, timeout and error callbacks
+    public void track(ResponseBodyEmitter emitter, String kind) {
+        track(emitter, kind, () -> false, () -> {});
+    }
+
+    // An emitter may have one callback of each kind, so onEnd carries the owner's own cleanup; while
+    // draining, the stream is closed as soon as idle reports nothing left to send
+    public void track(ResponseBodyEmitter emitter, String kind, BooleanSupplier idle, Runnable onEnd) {
+
+        admit();
+
+        streams.put(emitter, new ActiveStream(kind, idle, retryMillis -> close(emitter, retryMillis)));
+
+        Runnable remove = () -> {
+            untrack(emitter);
+            onEnd.run();
+        };
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(ex -> remove.run());
+    }
+
+    // A stream without an emitter, untracked by its owner when it ends; cutOff tells its client to retry after the given delay
+    public void track(Object handle, String kind, LongConsumer cutOff) {
+
+        admit();
+        streams.put(handle, new ActiveStream(kind, () -> false, cutOff));
+    }
+
+    // The subscription producing the stream, cancelled if it has to be cut off
+    public void attach(Object handle, Disposable subscription) {
+
+        ActiveStream stream = streams.get(handle);
+        if (stream != null) {
+            stream.subscription = subscription;
+        }
+    }
+
+    public void untrack(Object handle) {
+
+        if (streams.remove(handle) == null || !draining) {
+            return;
+        }
+
+        drained.increment();
+        synchronized (drainMonitor) {
+            drainMonitor.notifyAll();
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        drain();
+    }
+
+    // Drains on its own thread so other lifecycle beans in this phase can stop meanwhile
+    @Override
+    public void stop(Runnable callback) {
+
+        Thread thread = new Thread(() -> {
+            try {
+                drain();
+            } finally {
+                callback.run();
+            }
+        }, "spin-stream-drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void drain() {
+
+        draining = true;
+        long startedAt = System.nanoTime();
+        long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(gracePeriodMillis);
+
+        log.info("Draining {} open streams (grace period {} ms)", streams.size(), gracePeriodMillis);
+
+        while (!streams.isEmpty()) {
+
+            closeIdle();
+
+            synchronized (drainMonitor) {
+                long remaining = deadline - System.nanoTime();
+                if (streams.isEmpty() || remaining <= 0) {
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(drainMonitor, Math.min(remaining, IDLE_CHECK_NANOS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        List<Map.Entry<Object, ActiveStream>> leftovers = new ArrayList<>(streams.entrySet());
+        for (Map.Entry<Object, ActiveStream> entry : leftovers) {
+            if (streams.remove(entry.getKey()) != null) {
+                abort(entry.getValue());
+            }
+        }
+
+        drainTime.record(Duration.ofNanos(System.nanoTime() - startedAt));
+        log.info("Stream drain finished in {} ms; {} streams cut off",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), leftovers.size());
+
+        running = false;
+    }
+
+    // Streams with nothing in progress end now, with the same retry event as a cut-off one
+    private void closeIdle() {
+
+        for (Map.Entry<Object, ActiveStream> entry : new ArrayList<>(streams.entrySet())) {
+            if (entry.getValue().idle.getAsBoolean() && streams.remove(entry.getKey()) != null) {
+                drained.increment();
+                entry.getValue().cutOff.accept(retryMillis);
+            }
+        }
+    }
+
+    private void abort(ActiveStream stream) {
+
+        aborted.increment();
+        log.warn("Cutting off {} stream open for {} ms", stream.kind, System.currentTimeMillis() - stream.openedAt);
+
+        // Cancelled first, so no chunk races the final event
+        Disposable subscription = stream.subscription;
+        if (subscription != null) {
+            subscription.dispose();
+        }
+
+        stream.cutOff.accept(retryMillis);
+    }
+
+    private static void close(ResponseBodyEmitter emitter, long retryMillis) {
+        try {
+            if (emitter instanceof SseEmitter sse) {
+                sse.send(SseEmitter.event().name("retry").reconnectTime(retryMillis).data(Long.toString(retryMillis)));
+            }
+            emitter.complete();
+        } catch (IOException | IllegalStateException e) {
+            // The client is already gone
+            log.debug("Could not send the final retry event", e);
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Stops first, ahead of the web server's graceful shutdown phase
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE;
+    }
+
+    private static final class ActiveStream {
+
+        private final String kind;
+        private final BooleanSupplier idle;
+        private final LongConsumer cutOff;
+        private final long openedAt = System.currentTimeMillis();
+        private volatile Disposable subscription;
+
+        private ActiveStream(String kind, BooleanSupplier idle, LongConsumer cutOff) {
+            this.kind = kind;
+            this.idle = idle;
+            this.cutOff = cutOff;
+        }
+    }
+}
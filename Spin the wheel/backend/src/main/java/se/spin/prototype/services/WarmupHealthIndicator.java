@@ -0,0 +1,23 @@
+package se.spin.prototype.services;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+// Part of the readiness group: traffic waits until the warm-up stage has run
+@Component
+public class WarmupHealthIndicator implements HealthIndicator {
+
+    private final WarmupService warmupService;
+
+    public WarmupHealthIndicator(WarmupService warmupService) {
+        this.warmupService = warmupService;
+    }
+
+    @Override
+    public Health health() {
+        return warmupService.isDone()
+            ? Health.up().build()
+            : Health.outOfService().withDetail("warmup", "running").build();
+    }
+}
@@ -0,0 +1,126 @@
+package se.spin.prototype.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Warms connections, JIT-compiled code paths and the seed cache before readiness reports UP
+@Component
+public class WarmupService {
+
+    private static final Logger log = LoggerFactory.getLogger(WarmupService.class);
+
+    // Iterations averaged for the "after" cost of the code paths
+    private static final int SAMPLE = 100;
+
+    private final HuggingFaceService huggingFaceService;
+    private final FirestoreService firestoreService;
+    private final MeterRegistry meterRegistry;
+
+    private final boolean enabled;
+    private final int iterations;
+    private final long connectTimeoutMillis;
+
+    private volatile boolean done;
+
+    private final AtomicLong firstPassNanos = new AtomicLong();
+    private final AtomicLong warmPassNanos = new AtomicLong();
+    private final AtomicLong seedsPreloaded = new AtomicLong();
+
+    public WarmupService(HuggingFaceService huggingFaceService,
+                         FirestoreService firestoreService,
+                         MeterRegistry meterRegistry,
+                         @Value("${spin.warmup.enabled:true}") boolean enabled,
+                         @Value("${spin.warmup.iterations:5000}") int iterations,
+                         @Value("${spin.warmup.connect-timeout-ms:5000}") long connectTimeoutMillis) {
+
+        this.huggingFaceService = huggingFaceService;
+        this.firestoreService = firestoreService;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.iterations = iterations;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.done = !enabled;
+
+        meterRegistry.gauge("spin.warmup.codepath.first.ns", firstPassNanos, AtomicLong::get);
+        meterRegistry.gauge("spin.warmup.codepath.warm.ns", warmPassNanos, AtomicLong::get);
+        meterRegistry.gauge("spin.warmup.seeds.preloaded", seedsPreloaded, AtomicLong::get);
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpInBackground() {
+
+        if (!enabled) {
+            return;
+        }
+
+        Thread thread = new Thread(this::warmUp, "spin-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void warmUp() {
+
+        long startedAt = System.nanoTime();
+
+        try {
+            step("connections", () -> huggingFaceService.warmUpConnections(Duration.ofMillis(connectTimeoutMillis)));
+            step("code_paths", this::exerciseCodePaths);
+            step("seeds", () -> seedsPreloaded.set(firestoreService.preloadSeeds()));
+        } finally {
+            done = true;
+        }
+
+        log.info("Warm-up finished in {} ms: code path {} ns cold, {} ns warm, {} seeds preloaded",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), firstPassNanos.get(), warmPassNanos.get(), seedsPreloaded.get());
+    }
+
+    private void exerciseCodePaths() {
+
+        long sink = 0;
+
+        long start = System.nanoTime();
+        sink += huggingFaceService.exerciseCodePaths();
+        firstPassNanos.set(System.nanoTime() - start);
+
+        for (int i = 1; i < iterations - SAMPLE; i++) {
+            sink += huggingFaceService.exerciseCodePaths();
+        }
+
+        start = System.nanoTime();
+        for (int i = 0; i < SAMPLE; i++) {
+            sink += huggingFaceService.exerciseCodePaths();
+        }
+        warmPassNanos.set((System.nanoTime() - start) / SAMPLE);
+
+        // Keeps the loop observable so it is not optimized away
+        log.debug("Code path warm-up produced {} chars", sink);
+    }
+
+    private void step(String name, Runnable step) {
+
+        Timer timer = meterRegistry.timer("spin.warmup.duration", "step", name);
+        long start = System.nanoTime();
+
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            log.warn("Warm-up step {} failed", name, e);
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package se.spin.prototype.tracing;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// One timed stage of a request, in the OpenTelemetry data model
+public final class Span {
+
+    // Spans with more events than this drop the rest, so a long stream cannot grow one without bound
+    private static final int MAX_EVENTS = 64;
+
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final String name;
+    private final long startEpochMicros;
+    private final long startNanos;
+
+    // Guarded by this
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+    private final List<Event> events = new ArrayList<>();
+    private String error;
+    private long durationNanos = -1;
+
+    Span(String traceId, String spanId, String parentSpanId, String name) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        Instant now = Instant.now();
+        this.startEpochMicros = now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000;
+        this.startNanos = System.nanoTime();
+    }
+
+    public String traceId() {
+        return traceId;
+    }
+
+    public String spanId() {
+        return spanId;
+    }
+
+    public String parentSpanId() {
+        return parentSpanId;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long startEpochMicros() {
+        return startEpochMicros;
+    }
+
+    // W3C trace context header value for outbound requests made within this span
+    public String traceparent() {
+        return "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    public synchronized Span attribute(String key, Object value) {
+        if (value != null) {
+            attributes.put(key, value);
+        }
+        return this;
+    }
+
+    public void event(String name) {
+        event(name, Map.of());
+    }
+
+    public synchronized void event(String name, Map<String, Object> eventAttributes) {
+        if (events.size() < MAX_EVENTS) {
+            events.add(new Event(name, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), eventAttributes));
+        }
+    }
+
+    public synchronized void error(Throwable ex) {
+        error = ex.getClass().getSimpleName() + (ex.getMessage() != null ? ": " + ex.getMessage() : "");
+    }
+
+    // Ends the span once; later calls are ignored
+    public void end() {
+
+        synchronized (this) {
+            if (durationNanos >= 0) {
+                return;
+            }
+            durationNanos = System.nanoTime() - startNanos;
+        }
+
+        Tracer.exported(this);
+    }
+
+    // Makes this span current on this thread until the scope is closed
+    public Tracer.Scope makeCurrent() {
+        return Tracer.bind(this);
+    }
+
+    public synchronized Data snapshot() {
+        return new Data(traceId, spanId, parentSpanId, name, startEpochMicros,
+            TimeUnit.NANOSECONDS.toMicros(durationNanos >= 0 ? durationNanos : System.nanoTime() - startNanos),
+            durationNanos >= 0, Map.copyOf(attributes), List.copyOf(events), error);
+    }
+
+    public record Event(String name, long offsetMicros, Map<String, Object> attributes) {}
+
+    public record Data(String traceId,
+                       String spanId,
+                       String parentSpanId,
+                       String name,
+                       long startEpochMicros,
+                       long durationMicros,
+                       boolean ended,
+                       Map<String, Object> attributes,
+                       List<Event> events,
+                       String error) {}
+}
@@ -0,0 +1,161 @@
+package se.spin.prototype.tracing;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// Keeps the most recent traces in process for the debug view
+@Component
+public class TraceStore {
+
+    private final int maxSpansPerTrace;
+
+    // Insertion-ordered, guarded by itself
+    private final LinkedHashMap<String, List<Span>> traces;
+
+    public TraceStore(@Value("${spin.tracing.enabled:true}") boolean enabled,
+                      @Value("${spin.tracing.max-traces:200}") int maxTraces,
+                      @Value("${spin.tracing.max-spans-per-trace:256}") int maxSpansPerTrace) {
+
+        this.maxSpansPerTrace = maxSpansPerTrace;
+        this.traces = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Span>> eldest) {
+                return size() > maxTraces;
+            }
+        };
+
+        if (enabled) {
+            Tracer.export(this::add);
+        }
+    }
+
+    private void add(Span span) {
+        synchronized (traces) {
+            List<Span> spans = traces.computeIfAbsent(span.traceId(), id -> new ArrayList<>());
+            if (spans.size() < maxSpansPerTrace) {
+                spans.add(span);
+            }
+        }
+    }
+
+    // Newest first; traces shorter than minDurationMillis are left out
+    public List<TraceView> recent(int limit, long minDurationMillis) {
+
+        List<List<Span>> snapshot;
+        synchronized (traces) {
+            snapshot = new ArrayList<>(traces.size());
+            traces.values().forEach(spans -> snapshot.add(List.copyOf(spans)));
+        }
+
+        return snapshot.stream()
+            .map(TraceStore::view)
+            .filter(trace -> trace.durationMicros() >= minDurationMillis * 1_000)
+            .sorted(Comparator.comparingLong(TraceView::startEpochMicros).reversed())
+            .limit(limit)
+            .toList();
+    }
+
+    public Optional<TraceView> find(String traceId) {
+
+        List<Span> spans;
+        synchronized (traces) {
+            List<Span> stored = traces.get(traceId);
+            spans = stored != null ? List.copyOf(stored) : null;
+        }
+
+        return Optional.ofNullable(spans).map(TraceStore::view);
+    }
+
+    private static TraceView view(List<Span> spans) {
+
+        List<Span.Data> data = spans.stream()
+            .map(Span::snapshot)
+            .sorted(Comparator.comparingLong(Span.Data::startEpochMicros))
+            .toList();
+
+        Map<String, Span.Data> byId = new HashMap<>();
+        Map<String, List<Span.Data>> children = new HashMap<>();
+        for (Span.Data span : data) {
+            byId.put(span.spanId(), span);
+        }
+
+        // Spans whose parent is remote or was not kept count as roots
+        List<Span.Data> roots = new ArrayList<>();
+        for (Span.Data span : data) {
+            if (span.parentSpanId() != null && byId.containsKey(span.parentSpanId())) {
+                children.computeIfAbsent(span.parentSpanId(), id -> new ArrayList<>()).add(span);
+            } else {
+                roots.add(span);
+            }
+        }
+
+        long start = data.get(0).startEpochMicros();
+        long end = data.stream().mapToLong(TraceStore::endMicros).max().orElse(start);
+        Span.Data root = roots.stream().max(Comparator.comparingLong(Span.Data::durationMicros)).orElseThrow();
+
+        List<String> criticalPath = new ArrayList<>();
+        for (Span.Data span = root; span != null; ) {
+            criticalPath.add(span.spanId());
+            span = children.getOrDefault(span.spanId(), List.of()).stream()
+                .max(Comparator.comparingLong(TraceStore::endMicros))
+                .orElse(null);
+        }
+
+        List<SpanView> views = new ArrayList<>(data.size());
+        for (Span.Data span : roots) {
+            addTree(span, 0, start, children, criticalPath, views);
+        }
+
+        return new TraceView(root.traceId(), root.name(), start, end - start, views.size(), views);
+    }
+
+    // Depth-first, so the list reads as a waterfall
+    private static void addTree(Span.Data span, int depth, long traceStart, Map<String, List<Span.Data>> children,
+                                List<String> criticalPath, List<SpanView> views) {
+
+        views.add(new SpanView(span.spanId(), span.parentSpanId(), span.name(), depth,
+            span.startEpochMicros() - traceStart, span.durationMicros(), span.ended(),
+            criticalPath.contains(span.spanId()), span.attributes(), span.events(), span.error()));
+
+        for (Span.Data child : children.getOrDefault(span.spanId(), List.of())) {
+            addTree(child, depth + 1, traceStart, children, criticalPath, views);
+        }
+    }
+
+    private static long endMicros(Span.Data span) {
+        return span.startEpochMicros() + span.durationMicros();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        Tracer.export(span -> {});
+    }
+
+    public record TraceView(String traceId,
+                            String root,
+                            long startEpochMicros,
+                            long durationMicros,
+                            int spanCount,
+                            List<SpanView> spans) {}
+
+    public record SpanView(String spanId,
+                           String parentSpanId,
+                           String name,
+                           int depth,
+                           long offsetMicros,
+                           long durationMicros,
+                           boolean ended,
+                           boolean critical,
+                           Map<String, Object> attributes,
+                           List<Span.Event> events,
+                           String error) {}
+}
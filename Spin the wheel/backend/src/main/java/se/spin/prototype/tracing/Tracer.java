@@ -0,0 +1,104 @@
+package se.spin.prototype.tracing;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+// Current span of the thread and where ended spans go; propagated like Deadline
+public final class Tracer {
+
+    public static final String TRACEPARENT = "traceparent";
+
+    private static final Pattern TRACEPARENT_FORMAT = Pattern.compile("00-([0-9a-f]{32})-([0-9a-f]{16})-[0-9a-f]{2}");
+    private static final String INVALID_TRACE_ID = "0".repeat(32);
+
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+
+    private static volatile Consumer<Span> exporter = span -> {};
+
+    private Tracer() {
+    }
+
+    // The span current on this thread, or null
+    public static Span current() {
+        return CURRENT.get();
+    }
+
+    // A child of the current span, or a new trace when there is none
+    public static Span start(String name) {
+        return start(name, current());
+    }
+
+    public static Span start(String name, Span parent) {
+        return parent != null
+            ? new Span(parent.traceId(), randomHex(8), parent.spanId(), name)
+            : new Span(randomHex(16), randomHex(8), null, name);
+    }
+
+    // Continues the caller's trace when the incoming traceparent header is valid
+    public static Span startRemote(String name, String traceparent) {
+
+        if (traceparent != null) {
+            var matcher = TRACEPARENT_FORMAT.matcher(traceparent.trim());
+            if (matcher.matches() && !matcher.group(1).equals(INVALID_TRACE_ID)) {
+                return new Span(matcher.group(1), randomHex(8), matcher.group(2), name);
+            }
+        }
+
+        return start(name, null);
+    }
+
+    public static Scope bind(Span span) {
+
+        Span previous = CURRENT.get();
+        CURRENT.set(span);
+
+        return () -> {
+            if (previous != null) {
+                CURRENT.set(previous);
+            } else {
+                CURRENT.remove();
+            }
+        };
+    }
+
+    // Runs the task on another thread with parent current; parent may be null
+    public static <T> Callable<T> wrap(Span parent, Callable<T> task) {
+        return () -> {
+            try (Scope ignored = bind(parent)) {
+                return task.call();
+            }
+        };
+    }
+
+    public static void clear() {
+        CURRENT.remove();
+    }
+
+    public static void export(Consumer<Span> target) {
+        exporter = target;
+    }
+
+    static void exported(Span span) {
+        exporter.accept(span);
+    }
+
+    private static String randomHex(int bytes) {
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        for (int i = 0; i < bytes; i++) {
+            int b = random.nextInt(256);
+            hex.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+
+    // Restores the previously current span; does not end this one
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
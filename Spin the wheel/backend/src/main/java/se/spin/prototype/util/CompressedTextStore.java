@@ -0,0 +1,515 @@
+package se.spin.prototype.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Off-heap, deflate-compressed store for short texts: direct buffer segments dropped oldest-first when
+// the budget is used up, an index of two primitive arrays, and a dictionary trained once on the first texts.
+// Entry layout: [int length][u16 key length][key][u16 meta length][meta][u8 dictionary][int text bytes][int compressed length][compressed]
+public final class CompressedTextStore {
+
+    // Receives decompressed text in chunks; the array is reused between calls
+    @FunctionalInterface
+    public interface TextSink {
+        void accept(char[] chars, int offset, int length);
+    }
+
+    public record Entry(byte[] meta, String text) {}
+
+    public record Stats(int entries, int segments, long offHeapBytes, long indexBytes,
+                        long textBytes, long compressedBytes, long evictions, boolean trainedDictionary) {
+
+        public double compressionRatio() {
+            return compressedBytes == 0 ? 0 : (double) textBytes / compressedBytes;
+        }
+    }
+
+    private static final int DICTIONARY_MAX = 32 * 1024;
+    private static final int CHUNK = 4096;
+    private static final float MAX_LOAD = 0.6f;
+
+    private static final byte[] BASE_DICTIONARY = (
+        "Related biographies: Return only the story text. Compare the two historical stories below. "
+            + "Highlight key differences in setting, tone, and perspective. Story 1 Story 2 "
+            + "Stockholm Göteborg Malmö Uppsala Sweden Swedish century war factory school church farm family "
+            + "was born in the year, and her mother and his father worked as a teacher in the town. "
+            + "She was the daughter of a He was the son of a In the winter of the spring of the summer of "
+            + "she would never forget he would never forget the streets of the city, where they lived. "
+            + "The first story the second story while in contrast both stories, with a sense of ")
+        .getBytes(StandardCharsets.UTF_8);
+
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final int trainAfter;
+
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION));
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    // Dictionary 1, trained from the first trainAfter texts; dictionary 0 is BASE_DICTIONARY. Set once, under the lock.
+    private volatile byte[] trainedDictionary;
+    private final Deque<byte[]> trainingSamples = new ArrayDeque<>();
+    private int trainingBytes;
+
+    // Guarded by this. Segments by sequence number; ring[seq % maxSegments]
+    private final Segment[] ring;
+    private int oldestSeq = 1;
+    private int currentSeq = 0;
+
+    // Guarded by this. hashes[i] is meaningful only where locations[i] != 0
+    private int[] hashes;
+    private long[] locations;
+    private int size;
+
+    private long textBytes;
+    private long compressedBytes;
+    private long evictions;
+    private long offHeapBytes;
+
+    public CompressedTextStore(long maxBytes, int segmentBytes, int trainAfter) {
+
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+        this.trainAfter = trainAfter;
+        this.ring = new Segment[maxSegments];
+        this.hashes = new int[1024];
+        this.locations = new long[1024];
+    }
+
+    // Returns false when the entry is larger than a segment and was not stored
+    public boolean put(String key, byte[] meta, String text) {
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+
+        byte[] trained = trainedDictionary;
+        int dictionary = trained != null ? 1 : 0;
+        byte[] compressed = deflate(raw, trained != null ? trained : BASE_DICTIONARY);
+
+        int length = 4 + 2 + keyBytes.length + 2 + meta.length + 1 + 4 + 4 + compressed.length;
+        if (length > segmentBytes || keyBytes.length > 0xFFFF || meta.length > 0xFFFF) {
+            return false;
+        }
+
+        synchronized (this) {
+
+            Segment segment = segmentFor(length);
+            int offset = segment.position;
+
+            ByteBuffer buffer = segment.buffer;
+            buffer.position(offset);
+            buffer.putInt(length);
+            buffer.putShort((short) keyBytes.length).put(keyBytes);
+            buffer.putShort((short) meta.length).put(meta);
+            buffer.put((byte) dictionary);
+            buffer.putInt(raw.length);
+            buffer.putInt(compressed.length);
+            buffer.put(compressed);
+            segment.position += length;
+
+            long location = ((long) segment.seq << 32) | offset;
+            int hash = hash(keyBytes);
+            int slot = find(hash, keyBytes);
+
+            if (slot >= 0) {
+                // Replaced; the old copy stays in its segment as garbage until that segment is dropped
+                discount(locations[slot]);
+                locations[slot] = location;
+            } else {
+                insert(hash, location);
+            }
+
+            textBytes += raw.length;
+            compressedBytes += compressed.length;
+
+            if (dictionary == 0) {
+                train(raw);
+            }
+        }
+
+        return true;
+    }
+
+    public synchronized boolean contains(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        return find(hash(keyBytes), keyBytes) >= 0;
+    }
+
+    public Optional<Entry> get(String key) {
+
+        Compressed compressed = copyOut(key);
+        if (compressed == null) {
+            return Optional.empty();
+        }
+
+        StringBuilder text = new StringBuilder(compressed.textBytes);
+        TextReader reader = new TextReader(compressed, inflaters.get(), false);
+        while (reader.read(text::append)) {
+            // appended by the sink
+        }
+
+        return Optional.of(new Entry(compressed.meta, text.toString()));
+    }
+
+    // Streams the text in chunks without building it as one string; false when the key is absent
+    public boolean readText(String key, TextSink sink) {
+
+        Compressed compressed = copyOut(key);
+        if (compressed == null) {
+            return false;
+        }
+
+        TextReader reader = new TextReader(compressed, inflaters.get(), false);
+        while (reader.read(sink)) {
+            // passed to the sink
+        }
+        return true;
+    }
+
+    // A reader that inflates the text one chunk per read, for consumers that pull; null when the key is absent
+    public TextReader openText(String key) {
+        Compressed compressed = copyOut(key);
+        return compressed != null ? new TextReader(compressed, new Inflater(), true) : null;
+    }
+
+    public synchronized Stats stats() {
+
+        int segments = 0;
+        for (Segment segment : ring) {
+            if (segment != null && segment.seq >= oldestSeq) {
+                segments++;
+            }
+        }
+
+        return new Stats(size, segments, offHeapBytes, (long) locations.length * 12,
+            textBytes, compressedBytes, evictions, trainedDictionary != null);
+    }
+
+    private synchronized Compressed copyOut(String key) {
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int slot = find(hash(keyBytes), keyBytes);
+        if (slot < 0) {
+            return null;
+        }
+
+        ByteBuffer buffer = bufferAt(locations[slot], keyBytes.length);
+
+        byte[] meta = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(meta);
+        int dictionary = buffer.get();
+        int rawLength = buffer.getInt();
+        byte[] data = new byte[buffer.getInt()];
+        buffer.get(data);
+
+        return new Compressed(meta, dictionary == 1 ? trainedDictionary : BASE_DICTIONARY, rawLength, data);
+    }
+
+    // Positioned just after the key of the entry at location
+    private ByteBuffer bufferAt(long location, int keyLength) {
+        Segment segment = ring[(int) (location >>> 32) % maxSegments];
+        return segment.buffer.duplicate().position((int) location + 4 + 2 + keyLength);
+    }
+
+    private Segment segmentFor(int length) {
+
+        Segment current = currentSeq >= oldestSeq ? ring[currentSeq % maxSegments] : null;
+        if (current != null && current.position + length <= segmentBytes) {
+            return current;
+        }
+
+        int seq = currentSeq + 1;
+        if (seq - oldestSeq >= maxSegments) {
+            evictOldest();
+        }
+
+        Segment previous = ring[seq % maxSegments];
+        ByteBuffer buffer;
+        if (previous != null) {
+            buffer = previous.buffer;
+        } else {
+            buffer = ByteBuffer.allocateDirect(segmentBytes);
+            offHeapBytes += segmentBytes;
+        }
+
+        Segment segment = new Segment(seq, buffer);
+        ring[seq % maxSegments] = segment;
+        currentSeq = seq;
+
+        return segment;
+    }
+
+    // Drops every entry of the oldest segment that the index still points at
+    private void evictOldest() {
+
+        Segment segment = ring[oldestSeq % maxSegments];
+        ByteBuffer buffer = segment.buffer.duplicate();
+
+        int offset = 0;
+        while (offset < segment.position) {
+
+            buffer.position(offset);
+            int length = buffer.getInt();
+            byte[] keyBytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+            buffer.get(keyBytes);
+
+            long location = ((long) segment.seq << 32) | offset;
+            int slot = find(hash(keyBytes), keyBytes);
+            if (slot >= 0 && locations[slot] == location) {
+                discount(location);
+                remove(slot);
+                evictions++;
+            }
+
+            offset += length;
+        }
+
+        oldestSeq++;
+    }
+
+    // Takes a live entry's sizes out of the totals
+    private void discount(long location) {
+
+        Segment segment = ring[(int) (location >>> 32) % maxSegments];
+        ByteBuffer buffer = segment.buffer.duplicate().position((int) location + 4);
+        buffer.position(buffer.position() + 2 + Short.toUnsignedInt(buffer.getShort()));
+        buffer.position(buffer.position() + 2 + Short.toUnsignedInt(buffer.getShort()));
+        buffer.get();
+
+        textBytes -= buffer.getInt();
+        compressedBytes -= buffer.getInt();
+    }
+
+    private int find(int hash, byte[] keyBytes) {
+
+        int mask = locations.length - 1;
+        for (int slot = hash & mask; locations[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && keyEquals(locations[slot], keyBytes)) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean keyEquals(long location, byte[] keyBytes) {
+
+        Segment segment = ring[(int) (location >>> 32) % maxSegments];
+        ByteBuffer buffer = segment.buffer.duplicate().position((int) location + 4);
+        if (Short.toUnsignedInt(buffer.getShort()) != keyBytes.length) {
+            return false;
+        }
+
+        return buffer.slice(buffer.position(), keyBytes.length).equals(ByteBuffer.wrap(keyBytes));
+    }
+
+    private void insert(int hash, long location) {
+
+        if (size + 1 > locations.length * MAX_LOAD) {
+            resize();
+        }
+
+        int mask = locations.length - 1;
+        int slot = hash & mask;
+        while (locations[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        hashes[slot] = hash;
+        locations[slot] = location;
+        size++;
+    }
+
+    // Backward-shift deletion keeps linear probing free of tombstones
+    private void remove(int slot) {
+
+        int mask = locations.length - 1;
+        int hole = slot;
+
+        for (int next = (hole + 1) & mask; locations[next] != 0; next = (next + 1) & mask) {
+            int home = hashes[next] & mask;
+            // Move the entry back if the hole lies on its probe path
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                hashes[hole] = hashes[next];
+                locations[hole] = locations[next];
+                hole = next;
+            }
+        }
+
+        locations[hole] = 0;
+        size--;
+    }
+
+    private void resize() {
+
+        int[] oldHashes = hashes;
+        long[] oldLocations = locations;
+
+        hashes = new int[oldLocations.length * 2];
+        locations = new long[oldLocations.length * 2];
+        size = 0;
+
+        for (int i = 0; i < oldLocations.length; i++) {
+            if (oldLocations[i] != 0) {
+                insert(oldHashes[i], oldLocations[i]);
+            }
+        }
+    }
+
+    // Builds the trained dictionary once enough texts have been seen; recent texts end up last, where deflate finds them cheapest
+    private void train(byte[] raw) {
+
+        // Entries already point at dictionary 1, so it must never change once set
+        if (trainedDictionary != null) {
+            return;
+        }
+
+        trainingSamples.addLast(raw);
+        trainingBytes += raw.length;
+        while (trainingBytes > DICTIONARY_MAX && trainingSamples.size() > 1) {
+            trainingBytes -= trainingSamples.removeFirst().length;
+        }
+
+        if (trainingSamples.size() < trainAfter) {
+            return;
+        }
+
+        byte[] dictionary = new byte[Math.min(trainingBytes, DICTIONARY_MAX)];
+        int end = dictionary.length;
+        for (var it = trainingSamples.descendingIterator(); it.hasNext() && end > 0; ) {
+            byte[] sample = it.next();
+            int take = Math.min(sample.length, end);
+            System.arraycopy(sample, sample.length - take, dictionary, end - take, take);
+            end -= take;
+        }
+
+        trainedDictionary = dictionary;
+        trainingSamples.clear();
+        trainingBytes = 0;
+    }
+
+    private byte[] deflate(byte[] raw, byte[] dictionary) {
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(raw);
+        deflater.finish();
+
+        byte[] out = new byte[raw.length + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+
+        return Arrays.copyOf(out, length);
+    }
+
+    // Inflates one entry a chunk at a time; a reader with its own inflater must be closed to free it
+    public static final class TextReader implements AutoCloseable {
+
+        private final byte[] dictionary;
+        private final Inflater inflater;
+        private final boolean ownsInflater;
+
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer bytes = ByteBuffer.allocate(CHUNK);
+        private final CharBuffer chars = CharBuffer.allocate(CHUNK);
+        private boolean done;
+
+        private TextReader(Compressed compressed, Inflater inflater, boolean ownsInflater) {
+            this.dictionary = compressed.dictionary;
+            this.inflater = inflater;
+            this.ownsInflater = ownsInflater;
+            inflater.reset();
+            inflater.setInput(compressed.data);
+        }
+
+        // Passes exactly one chunk to sink; false, without calling it, once the text is exhausted
+        public boolean read(TextSink sink) {
+
+            try {
+                fill();
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupt entry in compressed text store", e);
+            }
+
+            if (chars.position() == 0) {
+                return false;
+            }
+
+            sink.accept(chars.array(), 0, chars.position());
+            chars.clear();
+            return true;
+        }
+
+        private void fill() throws DataFormatException {
+
+            while (chars.position() == 0 && !done) {
+
+                if (!inflater.finished()) {
+                    int n = inflater.inflate(bytes.array(), bytes.position(), bytes.remaining());
+                    if (n == 0 && inflater.needsDictionary()) {
+                        inflater.setDictionary(dictionary);
+                        continue;
+                    }
+                    if (n == 0 && inflater.needsInput()) {
+                        throw new IllegalStateException("Truncated entry in compressed text store");
+                    }
+                    bytes.position(bytes.position() + n);
+                }
+
+                boolean last = inflater.finished();
+                bytes.flip();
+                CoderResult result = decoder.decode(bytes, chars, last);
+                bytes.compact();
+
+                if (last && !result.isOverflow()) {
+                    decoder.flush(chars);
+                    done = true;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (ownsInflater) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static int hash(byte[] keyBytes) {
+        int h = Arrays.hashCode(keyBytes);
+        return h ^ (h >>> 16);
+    }
+
+    private record Compressed(byte[] meta, byte[] dictionary, int textBytes, byte[] data) {}
+
+    private static final class Segment {
+
+        private final int seq;
+        private final ByteBuffer buffer;
+        private int position;
+
+        private Segment(int seq, ByteBuffer buffer) {
+            this.seq = seq;
+            this.buffer = buffer;
+        }
+    }
+}
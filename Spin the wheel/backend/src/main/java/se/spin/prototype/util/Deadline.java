@@ -0,0 +1,87 @@
+package se.spin.prototype.util;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end latency budget of a request, bound to the handler thread by the deadline interceptor;
+// work on other threads captures current() and re-binds it with wrap()
+public final class Deadline {
+
+    private static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    // System.nanoTime() at which the budget runs out
+    private final long expiresAtNanos;
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    public static Deadline current() {
+        Deadline deadline = CURRENT.get();
+        return deadline != null ? deadline : NONE;
+    }
+
+    public static void bind(Deadline deadline) {
+        CURRENT.set(deadline);
+    }
+
+    public static void clear() {
+        CURRENT.remove();
+    }
+
+    public boolean isBounded() {
+        return this != NONE;
+    }
+
+    public long remainingMillis() {
+        if (!isBounded()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return remainingMillis() == 0;
+    }
+
+    // The stage's own timeout, shortened to what is left of the budget
+    public long cap(long stageMillis) {
+        return Math.min(stageMillis, remainingMillis());
+    }
+
+    // Fails fast before starting a stage that cannot finish in time
+    public void check(String stage) {
+        if (isExpired()) {
+            throw expired(stage);
+        }
+    }
+
+    public ResponseStatusException expired(String stage) {
+        return new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "Request budget exhausted during " + stage);
+    }
+
+    // Runs the task on another thread with this deadline bound
+    public <T> Callable<T> wrap(Callable<T> task) {
+        return () -> {
+            Deadline previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                return task.call();
+            } finally {
+                if (previous != null) {
+                    CURRENT.set(previous);
+                } else {
+                    CURRENT.remove();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,33 @@
+package se.spin.prototype.util;
+
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+// RestTemplate request factory whose connect and read timeouts shrink to the current request deadline
+public class DeadlineRequestFactory extends SimpleClientHttpRequestFactory {
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    public DeadlineRequestFactory(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    protected void prepareConnection(HttpURLConnection connection, String httpMethod) throws IOException {
+
+        super.prepareConnection(connection, httpMethod);
+
+        Deadline deadline = Deadline.current();
+        if (deadline.isExpired()) {
+            throw new IOException("Request budget exhausted before " + httpMethod + " " + connection.getURL());
+        }
+
+        // A timeout of 0 means "infinite" to HttpURLConnection, so never go below 1 ms
+        connection.setConnectTimeout((int) Math.max(1, deadline.cap(connectTimeoutMillis)));
+        connection.setReadTimeout((int) Math.max(1, deadline.cap(readTimeoutMillis)));
+    }
+}
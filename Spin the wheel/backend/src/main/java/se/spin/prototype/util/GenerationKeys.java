@@ -0,0 +1,29 @@
+package se.spin.prototype.util;
+
+import se.spin.prototype.Beans.SpinArguments;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+// Cache keys for generated texts, shared by the caches and the persisted corpus
+public final class GenerationKeys {
+
+    private GenerationKeys() {}
+
+    public static String story(SpinArguments arguments) {
+        return SpinKey.of(arguments).toString();
+    }
+
+    // Order-normalised: (A, B) and (B, A) map to the same key
+    public static String comparison(SpinArguments firstArgs, String firstStory, SpinArguments secondArgs, String secondStory) {
+
+        String first = comparisonPart(firstArgs, firstStory);
+        String second = comparisonPart(secondArgs, secondStory);
+
+        return first.compareTo(second) <= 0 ? first + " vs " + second : second + " vs " + first;
+    }
+
+    private static String comparisonPart(SpinArguments arguments, String story) {
+        return story(arguments) + "#" + UUID.nameUUIDFromBytes(story.getBytes(StandardCharsets.UTF_8));
+    }
+}
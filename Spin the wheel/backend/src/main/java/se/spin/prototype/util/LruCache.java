@@ -0,0 +1,39 @@
+package se.spin.prototype.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Small synchronized access-ordered cache; evicts the least recently used entry
+public class LruCache<K, V> {
+
+    private final LinkedHashMap<K, V> map;
+
+    public LruCache(int capacity) {
+        this.map = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    public synchronized boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    public synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    public synchronized V remove(K key) {
+        return map.remove(key);
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,38 @@
+package se.spin.prototype.util;
+
+import se.spin.prototype.Beans.Gender;
+import se.spin.prototype.Beans.GenderEnum;
+import se.spin.prototype.Beans.SpinArguments;
+
+// Value identity of a spin, usable as a map key
+public record SpinKey(String city, int year, GenderEnum gender) {
+
+    public static SpinKey of(SpinArguments arguments) {
+        return new SpinKey(arguments.getCity(), arguments.getYear(), arguments.getGender().getId());
+    }
+
+    public SpinKey withCity(String city) {
+        return new SpinKey(city, year, gender);
+    }
+
+    public SpinKey withYear(int year) {
+        return new SpinKey(city, year, gender);
+    }
+
+    public SpinKey withGender(GenderEnum gender) {
+        return new SpinKey(city, year, gender);
+    }
+
+    public SpinArguments toArguments() {
+        SpinArguments arguments = new SpinArguments();
+        arguments.setCity(city);
+        arguments.setYear(year);
+        arguments.setGender(new Gender(gender, gender.getDescription()));
+        return arguments;
+    }
+
+    @Override
+    public String toString() {
+        return city + "|" + year + "|" + gender.name();
+    }
+}
@@ -0,0 +1,22 @@
+package se.spin.prototype.util;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+public final class TextUtil {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private TextUtil() {}
+
+    // "Malmö" and "malmo" fold to the same key
+    public static String foldDiacritics(String value) {
+
+        if (value == null)
+            return "";
+
+        String decomposed = Normalizer.normalize(value.trim(), Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+}
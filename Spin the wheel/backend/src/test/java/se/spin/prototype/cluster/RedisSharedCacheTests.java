@@ -0,0 +1,249 @@
+package se.spin.prototype.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RedisSharedCacheTests {
+
+	private static final Duration TTL = Duration.ofSeconds(30);
+
+	private StandInServer server;
+	private LettuceConnectionFactory connectionFactory;
+	private RedisSharedCache cache;
+
+	@BeforeEach
+	void start() throws IOException {
+		server = new StandInServer();
+		connectionFactory = connectionFactory(server.port());
+		cache = new RedisSharedCache(new StringRedisTemplate(connectionFactory), "test:");
+	}
+
+	@AfterEach
+	void stop() throws IOException {
+		connectionFactory.destroy();
+		server.close();
+	}
+
+	@Test
+	void storesValuesAndProgressStreams() {
+
+		cache.put("value:Malmö|1900|FEMALE", "Det var en gång 🎡\r\nslut", TTL);
+
+		assertEquals(Optional.of("Det var en gång 🎡\r\nslut"), cache.get("value:Malmö|1900|FEMALE"));
+		assertEquals(Optional.empty(), cache.get("value:missing"));
+		assertTrue(server.values.containsKey("test:value:Malmö|1900|FEMALE"));
+
+		cache.append("progress:a", List.of("chunk 0", "chunk 1", "chunk 2"), TTL);
+		cache.append("progress:a", List.of("chunk 3", "chunk 4"), TTL);
+
+		assertEquals(List.of("chunk 3", "chunk 4"), cache.read("progress:a", 3));
+		assertEquals(List.of(), cache.read("progress:a", 5));
+		assertEquals(List.of(), cache.read("progress:missing", 0));
+	}
+
+	@Test
+	void leaseBelongsToItsHolderOnly() {
+
+		assertTrue(cache.tryAcquire("lease:k", "node-a", TTL));
+		assertFalse(cache.tryAcquire("lease:k", "node-b", TTL));
+		assertEquals(Optional.of("node-a"), cache.holder("lease:k"));
+
+		assertFalse(cache.renew("lease:k", "node-b", TTL));
+		assertTrue(cache.renew("lease:k", "node-a", TTL));
+
+		cache.release("lease:k", "node-b");
+		assertEquals(Optional.of("node-a"), cache.holder("lease:k"));
+
+		cache.release("lease:k", "node-a");
+		assertEquals(Optional.empty(), cache.holder("lease:k"));
+		assertTrue(cache.tryAcquire("lease:k", "node-b", TTL));
+	}
+
+	@Test
+	void unreachableServerIsASharedCacheException() throws IOException {
+
+		server.close();
+		RedisSharedCache unreachable = new RedisSharedCache(new StringRedisTemplate(connectionFactory), "test:");
+		connectionFactory.resetConnection();
+
+		assertThrows(SharedCacheException.class, () -> unreachable.get("value:k"));
+	}
+
+	private static LettuceConnectionFactory connectionFactory(int port) {
+
+		LettuceConnectionFactory factory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("localhost", port),
+			LettuceClientConfiguration.builder().commandTimeout(Duration.ofSeconds(2)).build());
+		factory.afterPropertiesSet();
+		factory.start();
+		return factory;
+	}
+
+	// Just enough of a Redis server for the commands RedisSharedCache sends; no expiry, and scripts only by EVAL
+	private static final class StandInServer implements AutoCloseable {
+
+		private final ServerSocket socket = new ServerSocket(0);
+		private final Map<String, String> values = new ConcurrentHashMap<>();
+		private final Map<String, List<String>> lists = new ConcurrentHashMap<>();
+
+		private StandInServer() throws IOException {
+			Thread acceptor = new Thread(this::accept, "redis-stand-in");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		private int port() {
+			return socket.getLocalPort();
+		}
+
+		private void accept() {
+			while (!socket.isClosed()) {
+				try {
+					Socket client = socket.accept();
+					Thread handler = new Thread(() -> serve(client), "redis-stand-in-client");
+					handler.setDaemon(true);
+					handler.start();
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+
+		private void serve(Socket client) {
+			try (client) {
+				InputStream in = new BufferedInputStream(client.getInputStream());
+				OutputStream out = new BufferedOutputStream(client.getOutputStream());
+				while (true) {
+					List<String> command = readCommand(in);
+					if (command == null) {
+						return;
+					}
+					out.write(execute(command).getBytes(StandardCharsets.UTF_8));
+					if (in.available() == 0) {
+						out.flush();
+					}
+				}
+			} catch (IOException ignored) {
+				// Client went away
+			}
+		}
+
+		private synchronized String execute(List<String> command) {
+
+			String key = command.size() > 1 ? command.get(1) : "";
+
+			switch (command.get(0)) {
+				case "HELLO":
+					// An old server, so the client falls back to RESP2
+					return "-ERR unknown command 'HELLO'\r\n";
+				case "CLIENT":
+					return "+OK\r\n";
+				case "PING":
+					return "+PONG\r\n";
+				case "GET":
+					return bulk(values.get(key));
+				case "SET":
+					if (command.contains("NX") && values.containsKey(key)) {
+						return bulk(null);
+					}
+					values.put(key, command.get(2));
+					return "+OK\r\n";
+				case "SETEX":
+				case "PSETEX":
+					values.put(key, command.get(3));
+					return "+OK\r\n";
+				case "RPUSH":
+					List<String> list = lists.computeIfAbsent(key, k -> new ArrayList<>());
+					list.addAll(command.subList(2, command.size()));
+					return ":" + list.size() + "\r\n";
+				case "PEXPIRE":
+					return ":1\r\n";
+				case "LRANGE":
+					List<String> items = lists.getOrDefault(key, List.of());
+					int from = Integer.parseInt(command.get(2));
+					StringBuilder reply = new StringBuilder("*").append(Math.max(0, items.size() - from)).append("\r\n");
+					for (int i = from; i < items.size(); i++) {
+						reply.append(bulk(items.get(i)));
+					}
+					return reply.toString();
+				case "EVALSHA":
+					return "-NOSCRIPT No matching script. Please use EVAL.\r\n";
+				case "EVAL":
+					String lease = command.get(3);
+					if (!command.get(4).equals(values.get(lease))) {
+						return ":0\r\n";
+					}
+					if (RedisSharedCache.RELEASE_SCRIPT.equals(command.get(1))) {
+						values.remove(lease);
+					}
+					return ":1\r\n";
+				default:
+					return "-ERR unknown command '" + command.get(0) + "'\r\n";
+			}
+		}
+
+		private static String bulk(String value) {
+			if (value == null) {
+				return "$-1\r\n";
+			}
+			return "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+		}
+
+		private static List<String> readCommand(InputStream in) throws IOException {
+
+			int type = in.read();
+			if (type == -1) {
+				return null;
+			}
+
+			int count = Integer.parseInt(readLine(in));
+			List<String> command = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				in.read();
+				int length = Integer.parseInt(readLine(in));
+				command.add(new String(in.readNBytes(length), StandardCharsets.UTF_8));
+				in.readNBytes(2);
+			}
+			return command;
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int b;
+			while ((b = in.read()) != '\r') {
+				line.append((char) b);
+			}
+			in.read();
+			return line.toString();
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package se.spin.prototype.replay;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SseReplayTests {
+
+	// The second event is cut across two network reads
+	private static final List<String> CHUNKS = List.of(
+		"data: {\"choices\":[{\"delta\":{\"content\":\"Det var \"}}]}\n\ndata: {\"choices\":[{\"delta\"",
+		":{\"content\":\"en gång 🎡\"}}]}\n\n",
+		"data: [DONE]\n\n");
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void recordingSurvivesAWriteAndRead() throws IOException {
+
+		SseRecording recording = recording("story", true);
+		Path file = directory.resolve("story-1" + SseRecording.FILE_SUFFIX);
+		recording.write(file);
+
+		SseRecording read = SseRecording.read(file);
+
+		assertEquals(recording.label(), read.label());
+		assertEquals(recording.status(), read.status());
+		assertEquals(recording.contentType(), read.contentType());
+		assertEquals(recording.chunks().size(), read.chunks().size());
+		for (int i = 0; i < CHUNKS.size(); i++) {
+			assertEquals(recording.chunks().get(i).delayMicros(), read.chunks().get(i).delayMicros());
+			assertArrayEquals(recording.chunks().get(i).data(), read.chunks().get(i).data());
+		}
+		assertTrue(read.completed());
+	}
+
+	@Test
+	void replaysEventsThroughTheWebClientDecoder() throws IOException {
+
+		recording("story", true).write(directory.resolve("story-1" + SseRecording.FILE_SUFFIX));
+
+		List<String> data = stream("story").collectList().block(Duration.ofSeconds(5));
+
+		assertEquals(List.of(
+			"{\"choices\":[{\"delta\":{\"content\":\"Det var \"}}]}",
+			"{\"choices\":[{\"delta\":{\"content\":\"en gång 🎡\"}}]}",
+			"[DONE]"), data);
+	}
+
+	@Test
+	void recordedFailureEndsTheBodyWithAnIOException() throws IOException {
+
+		recording("compare", false).write(directory.resolve("compare-1" + SseRecording.FILE_SUFFIX));
+
+		RuntimeException failure = assertThrows(RuntimeException.class,
+			() -> stream("compare").collectList().block(Duration.ofSeconds(5)));
+
+		Throwable cause = failure;
+		while (cause != null && !(cause instanceof IOException)) {
+			cause = cause.getCause();
+		}
+		assertTrue(cause instanceof IOException, "expected an IOException in " + failure);
+	}
+
+	private Flux<String> stream(String label) {
+
+		SseReplayer replayer = new SseReplayer(new SimpleMeterRegistry(), directory.toString(), 0);
+		WebClient client = WebClient.builder()
+			.exchangeFunction(request -> Mono.error(new AssertionError("Replay must not reach the network")))
+			.filter(replayer)
+			.build();
+
+		return client.post()
+			.uri("http://upstream.invalid/v1/chat/completions")
+			.attribute(SseRecording.STREAM_ATTRIBUTE, label)
+			.retrieve()
+			.bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<String>>() {})
+			.map(ServerSentEvent::data);
+	}
+
+	private static SseRecording recording(String label, boolean completed) {
+		return new SseRecording(label, System.currentTimeMillis(), 200, "text/event-stream", 1200,
+			CHUNKS.stream().map(chunk -> new SseRecording.Chunk(40_000, chunk.getBytes(StandardCharsets.UTF_8))).toList(),
+			completed, completed ? null : "PrematureCloseException: Connection prematurely closed DURING response");
+	}
+}
@@ -0,0 +1,96 @@
+package se.spin.prototype.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ChatCompletionWriterTests {
+
+	private static final String MODEL = "AI-Sweden-Models/Llama-3-8B-instruct:featherless-ai";
+	private static final String PROMPT = "Write a short, realistic story set in Malmö around year 1900 about a woman\n\n"
+		+ "Context: She said \"hej\" \\ tab\there, control \u0001 and emoji 🎡.";
+
+	private static final int ITERATIONS = 20_000;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final ChatCompletionWriter writer = new ChatCompletionWriter(MODEL, 0.7, 0.9);
+
+	@Test
+	void writesSameJsonAsMapPayload() throws Exception {
+
+		ChatCompletionRequest request = new ChatCompletionRequest(
+			List.of(ChatCompletionRequest.Message.user(PROMPT), ChatCompletionRequest.Message.assistant("Det var en gång")), 200, true);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.writeTo(request, out);
+
+		Map<String, Object> payload = mapPayload(PROMPT, 200, true);
+		payload.put("messages", List.of(
+			Map.of("role", "user", "content", PROMPT),
+			Map.of("role", "assistant", "content", "Det var en gång")));
+
+		assertEquals(objectMapper.readTree(objectMapper.writeValueAsBytes(payload)), objectMapper.readTree(out.toByteArray()));
+	}
+
+	@Test
+	void allocatesLessThanMapPayload() throws Exception {
+
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+		ByteArrayOutputStream sink = new ByteArrayOutputStream(8192);
+
+		// Warm up both paths so class loading and JIT do not count
+		for (int i = 0; i < ITERATIONS; i++) {
+			objectMapper.writeValueAsBytes(mapPayload(PROMPT, 256, false));
+			sink.reset();
+			writer.writeTo(ChatCompletionRequest.of(PROMPT, 256, false), sink);
+		}
+
+		long threadId = Thread.currentThread().getId();
+
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < ITERATIONS; i++) {
+			objectMapper.writeValueAsBytes(mapPayload(PROMPT, 256, false));
+		}
+		long mapBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+		before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink.reset();
+			writer.writeTo(ChatCompletionRequest.of(PROMPT, 256, false), sink);
+		}
+		long writerBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+		assertTrue(writerBytes < mapBytes, "bytes allocated per request: writer " + writerBytes / ITERATIONS
+			+ ", map payload " + mapBytes / ITERATIONS);
+	}
+
+	// The payload as HuggingFaceService built it before the typed requests
+	private static Map<String, Object> mapPayload(String prompt, int maxTokens, boolean stream) {
+
+		Map<String, Object> userMessage = new HashMap<>();
+		userMessage.put("role", "user");
+		userMessage.put("content", prompt);
+
+		Map<String, Object> payload = new HashMap<>();
+		payload.put("model", MODEL);
+		payload.put("messages", List.of(userMessage));
+		payload.put("max_tokens", maxTokens);
+		payload.put("temperature", 0.7);
+		payload.put("top_p", 0.9);
+		payload.put("stream", stream);
+
+		return payload;
+	}
+}
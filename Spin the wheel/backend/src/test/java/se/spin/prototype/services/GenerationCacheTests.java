@@ -0,0 +1,156 @@
+package se.spin.prototype.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import se.spin.prototype.cluster.InMemorySharedCache;
+import se.spin.prototype.cluster.SharedGenerationCache;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class GenerationCacheTests {
+
+	@TempDir
+	Path dir;
+
+	private final List<GenerationStore> stores = new ArrayList<>();
+
+	@AfterEach
+	void stop() throws InterruptedException {
+		for (GenerationStore store : stores) {
+			store.shutdown();
+		}
+	}
+
+	@Test
+	void followerOnAnotherNodeReceivesTheLeadersChunks() throws Exception {
+
+		SharedGenerationCache shared = new InMemorySharedCache(1000);
+		GenerationCache leaderNode = cache(shared, "a");
+		GenerationCache followerNode = cache(shared, "b");
+
+		Sinks.Many<String> upstream = Sinks.many().unicast().onBackpressureBuffer();
+		AtomicInteger followerCalls = new AtomicInteger();
+
+		Flux<String> led = leaderNode.singleFlight("story:k", upstream::asFlux);
+		List<String> leaderSeen = new ArrayList<>();
+		led.subscribe(leaderSeen::add);
+
+		// The lease is taken off the caller's thread
+		long leased = System.currentTimeMillis() + 10_000;
+		while (shared.holder("lease:story:k").isEmpty() && System.currentTimeMillis() < leased) {
+			Thread.sleep(5);
+		}
+
+		List<String> followerSeen = new CopyOnWriteArrayList<>();
+		CompletableFuture<Void> followed = followerNode.singleFlight("story:k", () -> {
+				followerCalls.incrementAndGet();
+				return Flux.just("generated twice");
+			})
+			.doOnNext(followerSeen::add)
+			.then()
+			.toFuture();
+
+		// The follower joins while the leader is still generating
+		upstream.tryEmitNext("Det var ");
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (followerSeen.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		upstream.tryEmitNext("en gång");
+		upstream.tryEmitComplete();
+
+		followed.get(10, TimeUnit.SECONDS);
+		assertEquals(List.of("Det var ", "en gång"), followerSeen);
+		assertEquals(List.of("Det var ", "en gång"), leaderSeen);
+		assertEquals(0, followerCalls.get());
+	}
+
+	@Test
+	void followerTakesOverWhenTheLeaderShutsDown() throws Exception {
+
+		SharedGenerationCache shared = new InMemorySharedCache(1000);
+		GenerationCache leaderNode = cache(shared, "a");
+		GenerationCache followerNode = cache(shared, "b");
+
+		// Never finishes on its own
+		leaderNode.singleFlight("story:k", Flux::never).subscribe(chunk -> {}, ex -> {});
+
+		long leased = System.currentTimeMillis() + 10_000;
+		while (shared.holder("lease:story:k").isEmpty() && System.currentTimeMillis() < leased) {
+			Thread.sleep(5);
+		}
+
+		CompletableFuture<List<String>> followed = followerNode.singleFlight("story:k", () -> Flux.just("taken over"))
+			.collectList()
+			.toFuture();
+
+		leaderNode.shutdown();
+
+		// Well inside the follower's 15 s stall limit
+		assertEquals(List.of("taken over"), followed.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void leaderIsNotHeldUpByASlowSharedTier() throws Exception {
+
+		// Appends hang until the leader's caller has everything
+		CountDownLatch tierOpen = new CountDownLatch(1);
+		SharedGenerationCache slow = new InMemorySharedCache(1000) {
+			@Override
+			public void append(String stream, List<String> chunks, Duration ttl) {
+				try {
+					tierOpen.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.append(stream, chunks, ttl);
+			}
+		};
+		GenerationCache leaderNode = cache(slow, "a");
+
+		// Completes while every append is still stuck; a leader waiting on the tier would time out here
+		List<String> chunks = leaderNode.singleFlight("story:k", () -> Flux.range(0, 20).map(i -> "chunk " + i))
+			.collectList()
+			.block(Duration.ofSeconds(10));
+
+		assertEquals(20, chunks.size());
+		tierOpen.countDown();
+
+		// The mirror catches up in batches and then frees the lease
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (slow.holder("lease:story:k").isPresent() && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+		assertEquals(Optional.empty(), slow.holder("lease:story:k"));
+	}
+
+	private GenerationCache cache(SharedGenerationCache shared, String nodeId) {
+
+		FirestoreService firestore = mock(FirestoreService.class);
+		when(firestore.isEnabled()).thenReturn(false);
+
+		GenerationStore store = new GenerationStore(firestore, new ObjectMapper(), new SimpleMeterRegistry(),
+			100, "drop-oldest", 50, 20, dir.resolve(nodeId + ".ndjson").toString(), 1, 3, 16, 64, 64, 100);
+		stores.add(store);
+
+		return new GenerationCache(store, shared, new ObjectMapper(), new SimpleMeterRegistry(), nodeId, 60, 60_000, 10, 15_000);
+	}
+}
@@ -0,0 +1,129 @@
+package se.spin.prototype.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class GenerationStoreTests {
+
+	@TempDir
+	Path dir;
+
+	private GenerationStore store;
+
+	@AfterEach
+	void stop() throws InterruptedException {
+		if (store != null) {
+			store.shutdown();
+		}
+	}
+
+	@Test
+	void recordIsVisibleBeforeItIsFlushed() {
+
+		store = store(local(), dir.resolve("log.ndjson"), 1);
+		store.record(record("story:1", "Malmö 1905"));
+
+		assertTrue(store.contains("story:1"));
+		assertEquals("Malmö 1905", store.findLatest("story:1").orElseThrow().text());
+		assertEquals("Malmö 1905", String.join("", store.streamText("story:1").collectList().block()));
+	}
+
+	@Test
+	void streamedTextIsInflatedOnDemand() {
+
+		store = store(local(), dir.resolve("log.ndjson"), 1);
+		String text = "Det var en gång i Malmö 1905. ".repeat(1000);
+		store.cache(record("story:1", text));
+
+		String first = store.streamText("story:1").take(1).blockFirst();
+		assertTrue(first.length() < text.length(), "first chunk held the whole text");
+
+		assertEquals(text, String.join("", store.streamText("story:1").collectList().block()));
+		assertEquals(List.of(), store.streamText("story:2").collectList().block());
+	}
+
+	@Test
+	void warmUpReadsTheTailAcrossARotatedLog() throws Exception {
+
+		Path log = dir.resolve("log.ndjson");
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		store = store(local(), log, 1, registry);
+		for (int i = 0; i < 1000; i++) {
+			store.record(record("story:" + i, ("text " + i + " ").repeat(400)));
+		}
+
+		// Flushed batch by batch, so the size check runs between them
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (registry.counter("spin.persistence.records", "result", "flushed").count() < 1000 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		store.shutdown();
+
+		assertTrue(Files.exists(dir.resolve("log.ndjson.1")), "log was not rotated");
+
+		store = store(local(), log, 1);
+		store.warmUp();
+
+		assertTrue(store.contains("story:999"));
+		assertTrue(store.contains("story:900"));
+		assertTrue(!store.contains("story:899"), "warm-up went past its limit");
+	}
+
+	@Test
+	void failedBatchIsRetried() throws Exception {
+
+		AtomicInteger calls = new AtomicInteger();
+		FirestoreService firestore = mock(FirestoreService.class);
+		when(firestore.isEnabled()).thenReturn(true);
+		doAnswer(invocation -> {
+			if (calls.incrementAndGet() == 1) {
+				throw new IllegalStateException("unavailable");
+			}
+			return null;
+		}).when(firestore).saveGenerations(anyList());
+
+		store = store(firestore, dir.resolve("log.ndjson"), 1);
+		store.record(record("story:1", "Malmö 1905"));
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (calls.get() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(2, calls.get());
+	}
+
+	private static FirestoreService local() {
+		FirestoreService firestore = mock(FirestoreService.class);
+		when(firestore.isEnabled()).thenReturn(false);
+		return firestore;
+	}
+
+	private static GenerationStore store(FirestoreService firestore, Path log, long logMaxMegabytes) {
+		return store(firestore, log, logMaxMegabytes, new SimpleMeterRegistry());
+	}
+
+	private static GenerationStore store(FirestoreService firestore, Path log, long logMaxMegabytes, SimpleMeterRegistry registry) {
+		return new GenerationStore(firestore, new ObjectMapper(), registry,
+			1000, "drop-oldest", 50, 20, log.toString(), logMaxMegabytes, 3, 16, 64, 64, 100);
+	}
+
+	private static GenerationRecord record(String key, String text) {
+		return new GenerationRecord("story", key, null, text, "model", 10, 1, 1, System.currentTimeMillis());
+	}
+}
@@ -0,0 +1,74 @@
+package se.spin.prototype.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.spin.prototype.Beans.GenderEnum;
+import se.spin.prototype.Beans.SeedResult;
+import se.spin.prototype.util.Deadline;
+import se.spin.prototype.util.SpinKey;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class HuggingFaceServiceTests {
+
+	@AfterEach
+	void unbind() {
+		Deadline.clear();
+	}
+
+	@Test
+	void tricklingStreamIsCutOffAtTheDeadline() {
+
+		// A token every 100 ms, well inside any gap timeout, for as long as anyone listens
+		AtomicInteger sent = new AtomicInteger();
+		Flux<DataBuffer> trickle = Flux.interval(Duration.ofMillis(100))
+			.doOnNext(tick -> sent.incrementAndGet())
+			.map(tick -> DefaultDataBufferFactory.sharedInstance.wrap(
+				"data: {\"choices\":[{\"delta\":{\"content\":\"ord \"}}]}\n\n".getBytes(StandardCharsets.UTF_8)));
+
+		HuggingFaceService service = service((request, next) -> Mono.just(ClientResponse.create(HttpStatus.OK)
+			.header(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_EVENT_STREAM_VALUE)
+			.body(trickle)
+			.build()));
+
+		Deadline.bind(Deadline.after(1000));
+		Flux<String> story = service.streamStory(new SpinKey("Stockholm", 1905, GenderEnum.FEMALE).toArguments(), new SeedResult("Stockholm 1905", null));
+		Deadline.clear();
+
+		ResponseStatusException failure = assertThrows(ResponseStatusException.class,
+			() -> story.collectList().block(Duration.ofSeconds(10)));
+
+		assertEquals(HttpStatus.GATEWAY_TIMEOUT, failure.getStatusCode());
+		assertTrue(sent.get() > 1, "the stream never trickled");
+	}
+
+	private static HuggingFaceService service(ExchangeFilterFunction upstream) {
+
+		@SuppressWarnings("unchecked")
+		ObjectProvider<ExchangeFilterFunction> filters = mock(ObjectProvider.class);
+		when(filters.orderedStream()).thenReturn(Stream.of(upstream));
+
+		return new HuggingFaceService(mock(SeedIndexService.class), mock(GenerationCache.class),
+			0, 0, 0, 1000, 1000, 100, 0, filters);
+	}
+}
@@ -0,0 +1,59 @@
+package se.spin.prototype.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SeedIndexServiceTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void truncatedTailIsCutOffAndLaterAppendsStillLoad() throws IOException {
+
+		Path file = dir.resolve("seed-index.bin");
+
+		SeedIndexService first = index(file);
+		first.add("a", "Stockholm 1905", "https://a", "Stockholm 1905 female");
+		first.add("b", "Malmö 1910", null, "Malmö 1910 male");
+		long whole = Files.size(file);
+
+		// A crash in the middle of the next entry
+		first.add("c", "Göteborg 1920", null, "Göteborg 1920 female");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(whole + 5);
+		}
+
+		SeedIndexService second = index(file);
+		assertEquals(2, second.size());
+		assertEquals(whole, Files.size(file));
+
+		second.add("d", "Uppsala 1930", null, "Uppsala 1930 male");
+		assertEquals(3, index(file).size());
+	}
+
+	@Test
+	void foreignFileIsDiscarded() throws IOException {
+
+		Path file = dir.resolve("seed-index.bin");
+		Files.write(file, new byte[] {0x7f, 0x7f, 0x7f, 0x7f, 0x7f, 0x7f, 0x7f, 0x7f, 0x7f});
+
+		SeedIndexService index = index(file);
+		assertEquals(0, index.size());
+
+		index.add("a", "Stockholm 1905", null, "Stockholm 1905 female");
+		assertEquals(1, index(file).size());
+	}
+
+	private static SeedIndexService index(Path file) {
+		return new SeedIndexService(null, new SeedEmbedder(), file.toString(), 3);
+	}
+}
@@ -0,0 +1,89 @@
+package se.spin.prototype.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompressedTextStoreTests {
+
+	private static final String TEXT = "In the winter of 1905 she walked the streets of Malmö, where her mother worked as a teacher. "
+		+ "Åsa said \"hej\" 🎡 and the family gathered in the church. ";
+
+	@Test
+	void returnsWhatWasStored() {
+
+		CompressedTextStore store = new CompressedTextStore(1 << 20, 64 * 1024, 4);
+
+		for (int i = 0; i < 100; i++) {
+			store.put("story:" + i, ("meta" + i).getBytes(StandardCharsets.UTF_8), TEXT.repeat(1 + i % 5) + i);
+		}
+
+		for (int i = 0; i < 100; i++) {
+			CompressedTextStore.Entry entry = store.get("story:" + i).orElseThrow();
+			assertEquals(TEXT.repeat(1 + i % 5) + i, entry.text());
+			assertArrayEquals(("meta" + i).getBytes(StandardCharsets.UTF_8), entry.meta());
+
+			StringBuilder streamed = new StringBuilder();
+			assertTrue(store.readText("story:" + i, streamed::append));
+			assertEquals(entry.text(), streamed.toString());
+		}
+
+		assertTrue(store.stats().trainedDictionary());
+		assertTrue(store.stats().compressionRatio() > 2, "ratio " + store.stats().compressionRatio());
+	}
+
+	@Test
+	void readerInflatesOneChunkPerRead() {
+
+		CompressedTextStore store = new CompressedTextStore(1 << 20, 64 * 1024, 4);
+		String text = TEXT.repeat(200);
+		store.put("story:long", new byte[0], text);
+
+		StringBuilder streamed = new StringBuilder();
+		int reads = 0;
+		try (CompressedTextStore.TextReader reader = store.openText("story:long")) {
+			while (reader.read((chars, offset, length) -> streamed.append(chars, offset, length))) {
+				reads++;
+			}
+		}
+
+		assertEquals(text, streamed.toString());
+		assertTrue(reads > 1, "read " + reads + " chunks");
+		assertEquals(null, store.openText("missing"));
+	}
+
+	@Test
+	void replacesAndEvictsOldestSegmentFirst() {
+
+		CompressedTextStore store = new CompressedTextStore(64 * 1024, 16 * 1024, 4);
+		Map<String, String> written = new LinkedHashMap<>();
+
+		for (int i = 0; i < 4000; i++) {
+			String key = "story:" + (i % 3000);
+			String text = TEXT + i;
+			store.put(key, new byte[0], text);
+			written.put(key, text);
+		}
+
+		assertTrue(store.stats().evictions() > 0);
+		assertFalse(store.contains("missing"));
+
+		int present = 0;
+		for (Map.Entry<String, String> entry : written.entrySet()) {
+			var stored = store.get(entry.getKey());
+			if (stored.isPresent()) {
+				present++;
+				assertEquals(entry.getValue(), stored.get().text());
+			}
+		}
+
+		assertEquals(store.stats().entries(), present);
+	}
+}
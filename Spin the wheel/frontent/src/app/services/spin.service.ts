@@ -141,6 +141,9 @@ export class SpinService {
               continue;
             }
 
+            // Other named events (e.g. the server's final "retry" when it shuts down) are not story text
+            if (eventType !== 'message' && eventType !== 'sources') continue;
+
             try {
               const isJson = data.trim().startsWith('{');
               const delta = isJson ? this.extractDelta(JSON.parse(data)) : data;